@@ -2,9 +2,14 @@ package com.tr.sptools.base;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BaseTools {
 
@@ -37,13 +42,27 @@ public class BaseTools {
 	}
 		
 	public static List<Configuration> generateAllTotalConfigs(Collection<String> variables) {
+		return generateAllTotalConfigs(variables, Collections.<String, Integer>emptyMap());
+	}
+
+	/**
+	 * Generate all total configurations of the given variables, which take
+	 * the values 0 .. n-1 for the domain size n given in the map (2 for
+	 * variables not in the map). The first variable changes fastest.
+	 */
+	public static List<Configuration> generateAllTotalConfigs(Collection<String> variables, Map<String, Integer> domainSizes) {
 		List<String> vars = new ArrayList<String>();
 		vars.addAll(variables);
+		int[] sizes = new int[vars.size()];
+		for (int i = 0; i < vars.size(); i++) {
+			Integer size = domainSizes.get(vars.get(i));
+			sizes[i] = size == null? 2: size;
+		}
 		
 		List<Configuration> res = new ArrayList<Configuration>();
 		Configuration config = new Configuration();
 		for (String var: vars) {
-			config.putValue(var, false);
+			config.putValue(var, 0);
 		}
 		
 		res.add(config);
@@ -51,10 +70,11 @@ public class BaseTools {
 		outer: while (!done) {
 			config = config.copy();
 			for (int i = 0; i < vars.size(); i++) {
-				if (config.getValue(vars.get(i))) {
-					config.putValue(vars.get(i), false);
+				int value = config.getIntValue(vars.get(i));
+				if (value + 1 >= sizes[i]) {
+					config.putValue(vars.get(i), 0);
 				} else {
-					config.putValue(vars.get(i), true);
+					config.putValue(vars.get(i), value + 1);
 					res.add(config);
 					continue outer;
 				}
@@ -65,5 +85,47 @@ public class BaseTools {
 		return res;
 	}
 
+	/**
+	 * Enumerate all total configurations of the given variables, without
+	 * materialising them. The same configuration object is updated in place
+	 * and returned at every step; copy it to retain it.
+	 * 
+	 * @see TotalConfigurationSpliterator
+	 */
+	public static Iterable<Configuration> iterateAllTotalConfigs(Collection<String> variables) {
+		return iterateAllTotalConfigs(variables, Collections.<String, Integer>emptyMap());
+	}
+
+	/**
+	 * Enumerate all total configurations of the given variables, with the
+	 * given domain sizes (2 for variables not in the map).
+	 * 
+	 * @see #iterateAllTotalConfigs(Collection)
+	 */
+	public static Iterable<Configuration> iterateAllTotalConfigs(Collection<String> variables, Map<String, Integer> domainSizes) {
+		return () -> Spliterators.iterator(new TotalConfigurationSpliterator(variables, domainSizes));
+	}
+
+	/**
+	 * Stream all total configurations of the given variables, without 
+	 * materialising them. Each thread of a parallel stream has its own 
+	 * configuration object, which is updated in place at every step; copy 
+	 * it to retain it.
+	 * 
+	 * @see TotalConfigurationSpliterator
+	 */
+	public static Stream<Configuration> streamAllTotalConfigs(Collection<String> variables, boolean parallel) {
+		return streamAllTotalConfigs(variables, Collections.<String, Integer>emptyMap(), parallel);
+	}
+
+	/**
+	 * Stream all total configurations of the given variables, with the
+	 * given domain sizes (2 for variables not in the map).
+	 * 
+	 * @see #streamAllTotalConfigs(Collection, boolean)
+	 */
+	public static Stream<Configuration> streamAllTotalConfigs(Collection<String> variables, Map<String, Integer> domainSizes, boolean parallel) {
+		return StreamSupport.stream(new TotalConfigurationSpliterator(variables, domainSizes), parallel);
+	}
 
 }
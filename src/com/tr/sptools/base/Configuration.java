@@ -12,34 +12,72 @@ import java.util.Set;
 
 /**
  * Represents a valuation of a set of variables
+ *
+ * Values are integer-coded: a variable with a domain of n values takes the
+ * values 0 .. n-1. Boolean values are the special case n = 2, with false
+ * coded as 0 and true as 1, so the boolean and integer accessors can be
+ * mixed for binary variables.
  */
 public class Configuration {
 	
-	private HashMap<String, Boolean> map = new HashMap<String, Boolean>();
+	private HashMap<String, Integer> map = new HashMap<String, Integer>();
 	
 	public Configuration() {
 	}
 
 	public Configuration(Map<String, Boolean> map) {
-		this.map.putAll(map);
+		for (Map.Entry<String, Boolean> e: map.entrySet()) {
+			putValue(e.getKey(), e.getValue());
+		}
 	}
 
 	public void putValue(String var, boolean value) {
+		map.put(var, value? 1: 0);
+	}
+
+	/**
+	 * Assign the given (integer-coded) value to the variable.
+	 */
+	public void putValue(String var, int value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value " + value + " for variable " + var);
+		}
 		map.put(var, value);
 	}
 
+	/**
+	 * @return Value of the given binary variable
+	 * @throws IllegalArgumentException If the variable has a value other than 0 or 1
+	 */
 	public boolean getValue(String var) {
+		int value = map.get(var);
+		if (value > 1) {
+			throw new IllegalArgumentException("Variable " + var + " has non-binary value " + value);
+		}
+		return value == 1;
+	}
+
+	/**
+	 * @return Integer-coded value of the given variable
+	 */
+	public int getIntValue(String var) {
 		return map.get(var);
 	}
 
 	public Configuration append(String var, boolean varValue) {
-		Configuration config = new Configuration(map);
+		Configuration config = copy();
+		config.putValue(var, varValue);
+		return config;
+	}
+
+	public Configuration append(String var, int varValue) {
+		Configuration config = copy();
 		config.putValue(var, varValue);
 		return config;
 	}
 
 	public Configuration append(Configuration config) {
-		Configuration newConfig = new Configuration(map);
+		Configuration newConfig = copy();
 		newConfig.map.putAll(config.map);
 		return newConfig;
 	}
@@ -77,7 +115,7 @@ public class Configuration {
 		}
 		Configuration config = new Configuration();
 		for (String var: vars) {
-			config.map.put(var, getValue(var));
+			config.map.put(var, getIntValue(var));
 		}
 		return config;
 	}
@@ -97,7 +135,7 @@ public class Configuration {
 	public boolean isConsistent(Configuration config) {
 		for (String var: config.getVariables()) {
 			if (!map.containsKey(var)) throw new IllegalArgumentException("Illegal variable");
-			if (getValue(var) != config.getValue(var)) return false;
+			if (getIntValue(var) != config.getIntValue(var)) return false;
 		}
 		return true;
 	}
@@ -108,7 +146,8 @@ public class Configuration {
 		Collections.sort(vars);
 		String a = "{";
 		for (String var: vars) {
-			a += "("+var+":"+(getValue(var)?"T":"F")+")";
+			int value = getIntValue(var);
+			a += "("+var+":"+(value == 0? "F": value == 1? "T": String.valueOf(value))+")";
 		}
 		a += "}";
 		return a;
@@ -118,4 +157,10 @@ public class Configuration {
 		return new Configuration(Collections.singletonMap(var, value));
 	}	
 
+	public static Configuration singleton(String var, int value) {
+		Configuration config = new Configuration();
+		config.putValue(var, value);
+		return config;
+	}
+
 }
@@ -0,0 +1,293 @@
+package com.tr.sptools.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.IntSemiRing;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * Distribution over all total configurations of an ordered list of
+ * variables, stored in a single array.
+ *
+ * The weight of a configuration is stored at the index given by its bit
+ * pattern: bit k of the index holds the value of the k-th variable. For
+ * semirings with a primitive specialization the weights are stored in a
+ * double[] or int[], so a distribution over 20 variables takes 8 MB.
+ * Total configurations are looked up in constant time.
+ *
+ * @see SparseDistribution
+ *
+ * @param <V> Type of value to use for weights (e.g. Double for probabilities)
+ */
+public class DenseDistribution<V> implements AbstractDistribution<V> {
+
+	private final SemiRing<V> semiRing;
+	private final List<String> vars;
+
+	/** Weights, exactly one of these is non-null */
+	private final double[] doubleWeights;
+	private final int[] intWeights;
+	private final V[] weights;
+
+	/** The semiring as a primitive specialization, at most one of these is non-null */
+	private final DoubleSemiRing<V> doubleSemiRing;
+	private final IntSemiRing<V> intSemiRing;
+
+	/**
+	 * Create a distribution over the given variables, with all weights set to zero().
+	 */
+	@SuppressWarnings("unchecked")
+	public DenseDistribution(SemiRing<V> semiRing, List<String> vars) {
+		if (vars.size() > 30) {
+			throw new IllegalArgumentException("Too many variables: " + vars.size());
+		}
+		if (new LinkedHashSet<String>(vars).size() != vars.size()) {
+			throw new IllegalArgumentException("Variables not unique");
+		}
+		this.semiRing = semiRing;
+		this.vars = Collections.unmodifiableList(new ArrayList<String>(vars));
+		int n = 1 << vars.size();
+		this.doubleSemiRing = DoubleSemiRing.of(semiRing);
+		this.intSemiRing = doubleSemiRing == null? IntSemiRing.of(semiRing): null;
+		this.doubleWeights = doubleSemiRing != null? new double[n]: null;
+		this.intWeights = intSemiRing != null? new int[n]: null;
+		this.weights = doubleWeights == null && intWeights == null? (V[])new Object[n]: null;
+		if (doubleWeights != null) {
+			Arrays.fill(doubleWeights, doubleSemiRing.zeroDouble());
+		} else if (intWeights != null) {
+			Arrays.fill(intWeights, intSemiRing.zeroInt());
+		} else {
+			Arrays.fill(weights, semiRing.zero());
+		}
+	}
+
+	/**
+	 * @return The variables of this distribution, in index order
+	 */
+	@Override
+	public List<String> getVariables() {
+		return vars;
+	}
+
+	@Override
+	public SemiRing<V> getSemiRing() {
+		return semiRing;
+	}
+
+	/**
+	 * @return Number of configurations (entries) of this distribution
+	 */
+	public int size() {
+		return 1 << vars.size();
+	}
+
+	/**
+	 * @return Index of the given configuration, which must assign all variables of this distribution
+	 */
+	public int indexOf(Configuration config) {
+		int index = 0;
+		for (int k = 0; k < vars.size(); k++) {
+			if (config.getValue(vars.get(k))) index |= 1 << k;
+		}
+		return index;
+	}
+
+	/**
+	 * @return The configuration with the given index
+	 */
+	public Configuration getConfiguration(int index) {
+		Configuration config = new Configuration();
+		for (int k = 0; k < vars.size(); k++) {
+			config.putValue(vars.get(k), ((index >>> k) & 1) != 0);
+		}
+		return config;
+	}
+
+	/**
+	 * @return Weight stored at the given index
+	 */
+	public V get(int index) {
+		if (doubleWeights != null) return doubleSemiRing.fromDouble(doubleWeights[index]);
+		if (intWeights != null) return intSemiRing.fromInt(intWeights[index]);
+		return weights[index];
+	}
+
+	public void set(int index, V value) {
+		if (doubleWeights != null) doubleWeights[index] = doubleSemiRing.toDouble(value);
+		else if (intWeights != null) intWeights[index] = intSemiRing.toInt(value);
+		else weights[index] = value;
+	}
+
+	/**
+	 * Unboxed lookup, for distributions over a DoubleSemiRing.
+	 */
+	public double getDouble(int index) {
+		return doubleWeights[index];
+	}
+
+	public void setDouble(int index, double value) {
+		doubleWeights[index] = value;
+	}
+
+	/**
+	 * Unboxed lookup, for distributions over an IntSemiRing.
+	 */
+	public int getInt(int index) {
+		return intWeights[index];
+	}
+
+	public void setInt(int index, int value) {
+		intWeights[index] = value;
+	}
+
+	/**
+	 * Return the weight of the given configuration, which must assign a
+	 * subset of the variables of this distribution. A total configuration
+	 * is looked up directly, for a partial configuration the weights of
+	 * all consistent total configurations are summed.
+	 */
+	@Override
+	public V getWeight(Configuration config) {
+		int mask = 0;
+		int bits = 0;
+		int assigned = 0;
+		for (int k = 0; k < vars.size(); k++) {
+			if (config.hasVariable(vars.get(k))) {
+				mask |= 1 << k;
+				if (config.getValue(vars.get(k))) bits |= 1 << k;
+				assigned++;
+			}
+		}
+		if (assigned != config.getVariables().size()) {
+			throw new IllegalArgumentException("Wrong set of variables");
+		}
+		if (mask == size() - 1) {
+			return get(bits);
+		}
+		return sum(bits, ~mask & (size() - 1));
+	}
+
+	/**
+	 * @return Sum of the weights at the indices bits | s, for all subsets s of free
+	 */
+	private V sum(int bits, int free) {
+		if (doubleWeights != null) {
+			DoubleSemiRing<V> sr = doubleSemiRing;
+			double w = sr.zeroDouble();
+			int s = 0;
+			do {
+				w = sr.sumDouble(w, doubleWeights[bits | s]);
+				s = (s - free) & free;
+			} while (s != 0);
+			return sr.fromDouble(w);
+		}
+		if (intWeights != null) {
+			IntSemiRing<V> sr = intSemiRing;
+			int w = sr.zeroInt();
+			int s = 0;
+			do {
+				w = sr.sumInt(w, intWeights[bits | s]);
+				s = (s - free) & free;
+			} while (s != 0);
+			return sr.fromInt(w);
+		}
+		V w = semiRing.zero();
+		int s = 0;
+		do {
+			w = semiRing.sum(w, weights[bits | s]);
+			s = (s - free) & free;
+		} while (s != 0);
+		return w;
+	}
+
+	/**
+	 * @return True iff the weight stored at the given index is zero()
+	 */
+	public boolean isZero(int index) {
+		if (doubleWeights != null) return doubleWeights[index] == doubleSemiRing.zeroDouble();
+		if (intWeights != null) return intWeights[index] == intSemiRing.zeroInt();
+		return semiRing.zero().equals(weights[index]);
+	}
+
+	/**
+	 * Return the marginal distribution over the given variables, in the
+	 * order of this distribution. The other variables are summed out one
+	 * at a time, highest index first. Summing out variable k adds the
+	 * entries at distance 2^k within each block of 2^(k+1) entries.
+	 * 
+	 * @param keep Variables to keep, all of which must be part of this distribution
+	 * @return Marginal distribution
+	 */
+	public DenseDistribution<V> marginalize(Collection<String> keep) {
+		if (!vars.containsAll(keep)) {
+			throw new IllegalArgumentException("Illegal variable, " + keep + " is not a subset of " + vars);
+		}
+		DenseDistribution<V> dist = this;
+		for (int k = vars.size() - 1; k >= 0; k--) {
+			if (!keep.contains(vars.get(k))) dist = dist.sumOut(k);
+		}
+		return dist;
+	}
+
+	/**
+	 * @return Distribution over the other variables, summing out the k-th variable
+	 */
+	private DenseDistribution<V> sumOut(int k) {
+		List<String> rest = new ArrayList<String>(vars);
+		rest.remove(k);
+		DenseDistribution<V> dist = new DenseDistribution<V>(semiRing, rest);
+		int bit = 1 << k;
+		int j = 0;
+		for (int base = 0; base < size(); base += 2 * bit) {
+			if (doubleWeights != null) {
+				DoubleSemiRing<V> sr = doubleSemiRing;
+				for (int i = base; i < base + bit; i++) {
+					dist.doubleWeights[j++] = sr.sumDouble(doubleWeights[i], doubleWeights[i + bit]);
+				}
+			} else if (intWeights != null) {
+				IntSemiRing<V> sr = intSemiRing;
+				for (int i = base; i < base + bit; i++) {
+					dist.intWeights[j++] = sr.sumInt(intWeights[i], intWeights[i + bit]);
+				}
+			} else {
+				for (int i = base; i < base + bit; i++) {
+					dist.weights[j++] = semiRing.sum(weights[i], weights[i + bit]);
+				}
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * @return Copy of this distribution that stores only the non-zero weights
+	 */
+	public SparseDistribution<V> toSparse() {
+		return SparseDistribution.of(this);
+	}
+
+	/**
+	 * @return Map-based copy of this distribution
+	 */
+	public Distribution<V> toDistribution() {
+		Distribution<V> dist = new Distribution<V>(semiRing, new LinkedHashSet<String>(vars));
+		for (int i = 0; i < size(); i++) {
+			dist.set(getConfiguration(i), get(i));
+		}
+		return dist;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < size(); i++) {
+			s.append(getConfiguration(i)).append(": ").append(get(i)).append("\n");
+		}
+		return s.toString();
+	}
+
+}
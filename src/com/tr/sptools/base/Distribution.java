@@ -3,8 +3,13 @@ package com.tr.sptools.base;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.IntSemiRing;
 import com.tr.sptools.semiring.SemiRing;
 
 public class Distribution<V> implements AbstractDistribution<V> {
@@ -14,42 +19,150 @@ public class Distribution<V> implements AbstractDistribution<V> {
 	private final Set<String> vars;
 	
 	private final HashMap<Configuration, V> map = new LinkedHashMap<Configuration, V>();
+
+	/** Number of marginals kept in the cache */
+	private static final int MARGINAL_CACHE_SIZE = 64;
+
+	/**
+	 * Recently used marginals, keyed by their variables (created by the
+	 * first marginalization, dropped by set, guarded by map)
+	 */
+	private MarginalCache<V> marginals;
+	
+	/** True iff this is a cached marginal, which is shared and cannot be changed */
+	private final boolean readOnly;
 	
 	public Distribution(SemiRing<V> semiRing, Set<String> vars) {
+		this(semiRing, vars, false);
+	}
+
+	private Distribution(SemiRing<V> semiRing, Set<String> vars, boolean readOnly) {
 		this.semiRing = semiRing;
 		this.vars = vars;
+		this.readOnly = readOnly;
 	}
 
+	/**
+	 * Set the weight of the given configuration, which must assign all
+	 * variables of this distribution.
+	 * 
+	 * @throws UnsupportedOperationException If this is a marginal returned by {@link #marginalize(Set)}
+	 */
 	public void set(Configuration c, V value) {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Marginal distributions cannot be changed");
+		}
 		if (!c.getVariables().equals(vars)) {
 			throw new IllegalArgumentException("Wrong set of variables");
 		}
-		map.put(c, value);
+		synchronized (map) {
+			map.put(c, value);
+			marginals = null;
+		}
 	}
 	
+	/**
+	 * Return the weight of the given configuration, which must assign a
+	 * subset of the variables of this distribution. The weight of a
+	 * partial configuration is looked up in the (cached) marginal over
+	 * its variables.
+	 */
 	@Override
 	public V getWeight(Configuration c) {
-		if (!c.getVariables().equals(vars)) {
+		if (!vars.containsAll(c.getVariables())) {
 			throw new IllegalArgumentException("Wrong set of variables");
 		}
-		if (map.containsKey(c)) {
-			return map.get(c);
+		Distribution<V> dist = c.getVariables().size() == vars.size()? this: marginalize(c.getVariables());
+		V w = dist.map.get(c);
+		return w == null? semiRing.zero(): w;
+	}
+
+	/**
+	 * Return the marginal distribution over the given variables, computed
+	 * in a single pass over the configurations of this distribution, or
+	 * of the smallest cached marginal that contains the given variables.
+	 * The most recently used marginals are cached until this distribution
+	 * is changed. Marginals are shared between callers and cannot be
+	 * changed. The cache may be used by concurrent readers.
+	 * 
+	 * @param vars A subset of the variables of this distribution
+	 * @return Distribution over the given variables
+	 */
+	public Distribution<V> marginalize(Set<String> vars) {
+		if (!this.vars.containsAll(vars)) {
+			throw new IllegalArgumentException("Wrong set of variables");
 		}
-		V sum = semiRing.zero();
-		for (Configuration cc: map.keySet()) {
-			if (cc.isConsistent(c)) {
-				sum = semiRing.sum(sum, map.get(cc));
+		Set<String> key = Collections.unmodifiableSet(new LinkedHashSet<String>(vars));
+		synchronized (map) {
+			return getMarginal(key);
+		}
+	}
+
+	/**
+	 * @return Marginal over the given variables, from the cache if present (caller holds the lock)
+	 */
+	private Distribution<V> getMarginal(Set<String> key) {
+		if (marginals == null) {
+			marginals = new MarginalCache<V>();
+		}
+		Distribution<V> dist = marginals.get(key);
+		if (dist == null) {
+			// Project the smallest cached marginal that contains the variables
+			Distribution<V> source = this;
+			for (Distribution<V> m: marginals.values()) {
+				if (m.vars.size() < source.vars.size() && m.vars.containsAll(key)) source = m;
+			}
+			dist = new Distribution<V>(semiRing, key, true);
+			for (Map.Entry<Configuration, V> e: source.map.entrySet()) {
+				Configuration c = e.getKey().restrict(key);
+				V w = dist.map.get(c);
+				dist.map.put(c, w == null? e.getValue(): semiRing.sum(w, e.getValue()));
 			}
+			marginals.put(key, dist);
 		}
-		return sum;
+		return dist;
 	}
 	
 	public boolean isNormalized() {
-		V sum = semiRing.zero();
-		for (Configuration cc: map.keySet()) {
-			sum = semiRing.sum(sum, map.get(cc));
+		return (sum(map.values()).equals(semiRing.one()));
+	}
+
+	/**
+	 * @return Sum of given values, accumulated without boxing if the semiring supports it
+	 */
+	private V sum(Iterable<V> values) {
+		DoubleSemiRing<V> dsr = DoubleSemiRing.of(semiRing);
+		if (dsr != null) {
+			double s = dsr.zeroDouble();
+			for (V v: values) {
+				s = dsr.sumDouble(s, dsr.toDouble(v));
+			}
+			return dsr.fromDouble(s);
 		}
-		return (sum.equals(semiRing.one()));
+		IntSemiRing<V> isr = IntSemiRing.of(semiRing);
+		if (isr != null) {
+			int s = isr.zeroInt();
+			for (V v: values) {
+				s = isr.sumInt(s, isr.toInt(v));
+			}
+			return isr.fromInt(s);
+		}
+		V s = semiRing.zero();
+		for (V v: values) {
+			s = semiRing.sum(s, v);
+		}
+		return s;
+	}
+
+	/**
+	 * @return Distribution over a single variable, whose value i has the i-th of the given weights
+	 */
+	public static <V> Distribution<V> singleton(SemiRing<V> ops, String var, List<V> weights) {
+		Distribution<V> dist = new Distribution<V>(ops, Collections.singleton(var));
+		for (int i = 0; i < weights.size(); i++) {
+			dist.set(Configuration.singleton(var, i), weights.get(i));
+		}
+		return dist;
 	}
 
 	public static <V> Distribution<V> singleton(SemiRing<V> ops, String var, V tv, V fv) {
@@ -65,11 +178,7 @@ public class Distribution<V> implements AbstractDistribution<V> {
 	}
 	
 	public V getNormalizationFactor() {
-		V s = semiRing.zero();
-		for (Configuration cfg: map.keySet()) {
-			s = semiRing.sum(s, map.get(cfg));
-		}
-		return s;
+		return sum(map.values());
 	}
 	
 	public String toString() {
@@ -81,11 +190,29 @@ public class Distribution<V> implements AbstractDistribution<V> {
 	}
 
 	public Set<Configuration> getConfigurations() {
-		return map.keySet();
+		return readOnly? Collections.unmodifiableSet(map.keySet()): map.keySet();
 	}
 
 	@Override
 	public SemiRing<V> getSemiRing() {
 		return semiRing;
 	}
+
+	/**
+	 * Map from variables to marginals that keeps the
+	 * {@link #MARGINAL_CACHE_SIZE} most recently used entries.
+	 */
+	private static class MarginalCache<V> extends LinkedHashMap<Set<String>, Distribution<V>> {
+		private static final long serialVersionUID = 1L;
+
+		MarginalCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Set<String>, Distribution<V>> eldest) {
+			return size() > MARGINAL_CACHE_SIZE;
+		}
+	}
+
 }
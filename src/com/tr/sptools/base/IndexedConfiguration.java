@@ -0,0 +1,252 @@
+package com.tr.sptools.base;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Represents a valuation of a set of variables, where the variables are
+ * identified by their index in a {@link VariableDictionary}.
+ *
+ * The valuation is stored as two bitsets: one marking the variables that
+ * are assigned a value, and one holding the values themselves. Lookups
+ * are O(1), and consistency checks and restrictions work on 64 variables
+ * at a time.
+ */
+public class IndexedConfiguration {
+
+	private final VariableDictionary dictionary;
+
+	/** Bit i is set iff variable i is assigned a value */
+	private long[] assigned;
+
+	/** Bit i holds the value of variable i (only meaningful if assigned) */
+	private long[] values;
+
+	public IndexedConfiguration(VariableDictionary dictionary) {
+		this.dictionary = dictionary;
+		this.assigned = new long[words(dictionary.size())];
+		this.values = new long[assigned.length];
+	}
+
+	private IndexedConfiguration(VariableDictionary dictionary, long[] assigned, long[] values) {
+		this.dictionary = dictionary;
+		this.assigned = assigned;
+		this.values = values;
+	}
+
+	/**
+	 * Create an indexed copy of the given configuration. Variables that are
+	 * not yet part of the dictionary are added to it.
+	 */
+	public static IndexedConfiguration of(VariableDictionary dictionary, Configuration config) {
+		IndexedConfiguration c = new IndexedConfiguration(dictionary);
+		for (String var: config.getVariables()) {
+			c.putValue(dictionary.add(var), config.getValue(var));
+		}
+		return c;
+	}
+
+	private static int words(int vars) {
+		return (vars + 63) >>> 6;
+	}
+
+	private void ensureCapacity(int var) {
+		if ((var >>> 6) >= assigned.length) {
+			int n = Math.max(words(var + 1), words(dictionary.size()));
+			assigned = Arrays.copyOf(assigned, n);
+			values = Arrays.copyOf(values, n);
+		}
+	}
+
+	/**
+	 * @return The dictionary used to identify variables
+	 */
+	public VariableDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public void putValue(int var, boolean value) {
+		ensureCapacity(var);
+		assigned[var >>> 6] |= 1L << var;
+		if (value) {
+			values[var >>> 6] |= 1L << var;
+		} else {
+			values[var >>> 6] &= ~(1L << var);
+		}
+	}
+
+	public void putValue(String var, boolean value) {
+		putValue(dictionary.add(var), value);
+	}
+
+	/**
+	 * Remove the value of the given variable (if any).
+	 */
+	public void removeValue(int var) {
+		if ((var >>> 6) < assigned.length) {
+			assigned[var >>> 6] &= ~(1L << var);
+			values[var >>> 6] &= ~(1L << var);
+		}
+	}
+
+	public boolean hasVariable(int var) {
+		return (var >>> 6) < assigned.length && (assigned[var >>> 6] & (1L << var)) != 0;
+	}
+
+	public boolean getValue(int var) {
+		if (!hasVariable(var)) {
+			throw new IllegalArgumentException("Variable " + dictionary.getVariable(var) + " not assigned");
+		}
+		return (values[var >>> 6] & (1L << var)) != 0;
+	}
+
+	public boolean getValue(String var) {
+		return getValue(dictionary.getIndex(var));
+	}
+
+	/**
+	 * @return Number of variables that are assigned a value
+	 */
+	public int size() {
+		int n = 0;
+		for (long w: assigned) {
+			n += Long.bitCount(w);
+		}
+		return n;
+	}
+
+	/**
+	 * @return Names of the variables that are assigned a value, ordered by index
+	 */
+	public Set<String> getVariables() {
+		Set<String> vars = new LinkedHashSet<String>();
+		for (int w = 0; w < assigned.length; w++) {
+			for (long bits = assigned[w]; bits != 0; bits &= bits - 1) {
+				vars.add(dictionary.getVariable((w << 6) + Long.numberOfTrailingZeros(bits)));
+			}
+		}
+		return vars;
+	}
+
+	/**
+	 * Returns true if given config is consistent with this config.
+	 *
+	 * More precisely: for every variable to which the given config assigns a value,
+	 * the current config must assign the same value.
+	 *
+	 * The variables of the given config must be a subset of the variables of this
+	 * config.
+	 *
+	 * @param config Another configuration (over the same dictionary) whose variables are contained in this configuration's variables.
+	 * @return True if given config is consistent with this one.
+	 */
+	public boolean isConsistent(IndexedConfiguration config) {
+		checkDictionary(config);
+		for (int w = 0; w < config.assigned.length; w++) {
+			long a = w < assigned.length? assigned[w]: 0;
+			long v = w < values.length? values[w]: 0;
+			if ((config.assigned[w] & ~a) != 0) throw new IllegalArgumentException("Illegal variable");
+			if (((v ^ config.values[w]) & config.assigned[w]) != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True iff this config and the given config assign the same values to the variables they share
+	 */
+	public boolean isCompatible(IndexedConfiguration config) {
+		checkDictionary(config);
+		int n = Math.min(assigned.length, config.assigned.length);
+		for (int w = 0; w < n; w++) {
+			if (((values[w] ^ config.values[w]) & assigned[w] & config.assigned[w]) != 0) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Write the restriction of this configuration to the variables in the
+	 * given mask into the target configuration, overwriting its contents.
+	 * No objects are allocated if the target is large enough.
+	 *
+	 * @param mask Bit mask of variables, see {@link VariableDictionary#mask}
+	 * @param target Configuration (over the same dictionary) to write to
+	 */
+	public void restrict(long[] mask, IndexedConfiguration target) {
+		checkDictionary(target);
+		if (target.assigned.length < assigned.length) {
+			target.assigned = new long[assigned.length];
+			target.values = new long[assigned.length];
+		}
+		for (int w = 0; w < target.assigned.length; w++) {
+			long m = w < mask.length && w < assigned.length? mask[w] & assigned[w]: 0;
+			target.assigned[w] = m;
+			target.values[w] = m == 0? 0: values[w] & m;
+		}
+	}
+
+	/**
+	 * @return Restriction of this configuration to the variables in the given mask
+	 */
+	public IndexedConfiguration restrict(long[] mask) {
+		IndexedConfiguration c = new IndexedConfiguration(dictionary);
+		restrict(mask, c);
+		return c;
+	}
+
+	public IndexedConfiguration copy() {
+		return new IndexedConfiguration(dictionary, assigned.clone(), values.clone());
+	}
+
+	/**
+	 * @return Equivalent map-based configuration
+	 */
+	public Configuration toConfiguration() {
+		Configuration config = new Configuration();
+		for (int w = 0; w < assigned.length; w++) {
+			for (long bits = assigned[w]; bits != 0; bits &= bits - 1) {
+				int var = (w << 6) + Long.numberOfTrailingZeros(bits);
+				config.putValue(dictionary.getVariable(var), (values[w] & (1L << var)) != 0);
+			}
+		}
+		return config;
+	}
+
+	private void checkDictionary(IndexedConfiguration config) {
+		if (config.dictionary != dictionary) {
+			throw new IllegalArgumentException("Configurations use different dictionaries");
+		}
+	}
+
+	public int hashCode() {
+		// Zero words contribute nothing, so that trailing unused words do not affect the hash
+		int h = 0;
+		for (int w = 0; w < assigned.length; w++) {
+			h += (w + 1) * (31 * Long.hashCode(assigned[w]) + Long.hashCode(values[w]));
+		}
+		return h;
+	}
+
+	public boolean equals(Object o) {
+		if (o instanceof IndexedConfiguration) {
+			IndexedConfiguration c = (IndexedConfiguration)o;
+			if (c.dictionary != dictionary) return false;
+			int n = Math.max(assigned.length, c.assigned.length);
+			for (int w = 0; w < n; w++) {
+				long a1 = w < assigned.length? assigned[w]: 0;
+				long a2 = w < c.assigned.length? c.assigned[w]: 0;
+				long v1 = w < values.length? values[w]: 0;
+				long v2 = w < c.values.length? c.values[w]: 0;
+				if (a1 != a2 || v1 != v2) return false;
+			}
+			return true;
+		} else {
+			return false;
+		}
+	}
+
+	public String toString() {
+		return toConfiguration().toString();
+	}
+
+}
@@ -0,0 +1,271 @@
+package com.tr.sptools.base;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.IntSemiRing;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * Sparse form of a {@link DenseDistribution}, for distributions where most
+ * configurations have weight zero().
+ *
+ * Only the non-zero entries are stored, as a sorted array of configuration
+ * indices (bit k holds the value of the k-th variable) and a parallel
+ * array of weights. Total configurations are looked up by binary search.
+ *
+ * @param <V> Type of value to use for weights (e.g. Double for probabilities)
+ */
+public class SparseDistribution<V> implements AbstractDistribution<V> {
+
+	private final SemiRing<V> semiRing;
+	private final List<String> vars;
+
+	/** Indices of the stored entries, in increasing order */
+	private final int[] indices;
+
+	/** Weights of the stored entries, exactly one of these is non-null */
+	private final double[] doubleWeights;
+	private final int[] intWeights;
+	private final V[] weights;
+
+	/** The semiring as a primitive specialization, at most one of these is non-null */
+	private final DoubleSemiRing<V> doubleSemiRing;
+	private final IntSemiRing<V> intSemiRing;
+
+	@SuppressWarnings("unchecked")
+	private SparseDistribution(SemiRing<V> semiRing, List<String> vars, int n) {
+		this.semiRing = semiRing;
+		this.vars = Collections.unmodifiableList(new ArrayList<String>(vars));
+		this.indices = new int[n];
+		this.doubleSemiRing = DoubleSemiRing.of(semiRing);
+		this.intSemiRing = doubleSemiRing == null? IntSemiRing.of(semiRing): null;
+		this.doubleWeights = doubleSemiRing != null? new double[n]: null;
+		this.intWeights = intSemiRing != null? new int[n]: null;
+		this.weights = doubleWeights == null && intWeights == null? (V[])new Object[n]: null;
+	}
+
+	/**
+	 * @return Sparse copy of the given distribution
+	 */
+	public static <V> SparseDistribution<V> of(DenseDistribution<V> dense) {
+		int n = 0;
+		for (int i = 0; i < dense.size(); i++) {
+			if (!dense.isZero(i)) n++;
+		}
+		SparseDistribution<V> dist = new SparseDistribution<V>(dense.getSemiRing(), dense.getVariables(), n);
+		int e = 0;
+		for (int i = 0; i < dense.size(); i++) {
+			if (dense.isZero(i)) continue;
+			dist.indices[e] = i;
+			if (dist.doubleWeights != null) dist.doubleWeights[e] = dense.getDouble(i);
+			else if (dist.intWeights != null) dist.intWeights[e] = dense.getInt(i);
+			else dist.weights[e] = dense.get(i);
+			e++;
+		}
+		return dist;
+	}
+
+	/**
+	 * @return Distribution holding the given entries, keyed by configuration index
+	 * @throws IllegalArgumentException If an index is out of range or a weight is null
+	 */
+	public static <V> SparseDistribution<V> of(SemiRing<V> semiRing, List<String> vars, SortedMap<Integer, V> entries) {
+		if (vars.size() > 30) {
+			throw new IllegalArgumentException("Too many variables: " + vars.size());
+		}
+		SparseDistribution<V> dist = new SparseDistribution<V>(semiRing, vars, entries.size());
+		int e = 0;
+		for (Map.Entry<Integer, V> entry: entries.entrySet()) {
+			if (entry.getKey() < 0 || entry.getKey() >= dist.size()) {
+				throw new IllegalArgumentException("Index " + entry.getKey() + " out of range for " + dist.size() + " configurations");
+			}
+			if (entry.getValue() == null) {
+				throw new IllegalArgumentException("Null weight for index " + entry.getKey());
+			}
+			dist.indices[e] = entry.getKey();
+			if (dist.doubleWeights != null) dist.doubleWeights[e] = dist.doubleSemiRing.toDouble(entry.getValue());
+			else if (dist.intWeights != null) dist.intWeights[e] = dist.intSemiRing.toInt(entry.getValue());
+			else dist.weights[e] = entry.getValue();
+			e++;
+		}
+		return dist;
+	}
+
+	/**
+	 * @return The variables of this distribution, in index order
+	 */
+	@Override
+	public List<String> getVariables() {
+		return vars;
+	}
+
+	@Override
+	public SemiRing<V> getSemiRing() {
+		return semiRing;
+	}
+
+	/**
+	 * @return Number of configurations of this distribution, as for {@link DenseDistribution#size()}
+	 */
+	public int size() {
+		return 1 << vars.size();
+	}
+
+	/**
+	 * @return Number of stored (non-zero) entries
+	 */
+	public int entryCount() {
+		return indices.length;
+	}
+
+	/**
+	 * @return Weight of the configuration with the given index
+	 */
+	public V get(int index) {
+		int e = Arrays.binarySearch(indices, index);
+		return e < 0? semiRing.zero(): getEntry(e);
+	}
+
+	private V getEntry(int e) {
+		if (doubleWeights != null) return doubleSemiRing.fromDouble(doubleWeights[e]);
+		if (intWeights != null) return intSemiRing.fromInt(intWeights[e]);
+		return weights[e];
+	}
+
+	/**
+	 * Return the weight of the given configuration, which must assign a
+	 * subset of the variables of this distribution. A total configuration
+	 * is looked up by binary search, for a partial configuration the
+	 * weights of all consistent stored entries are summed.
+	 */
+	@Override
+	public V getWeight(Configuration config) {
+		int mask = 0;
+		int bits = 0;
+		int assigned = 0;
+		for (int k = 0; k < vars.size(); k++) {
+			if (config.hasVariable(vars.get(k))) {
+				mask |= 1 << k;
+				if (config.getValue(vars.get(k))) bits |= 1 << k;
+				assigned++;
+			}
+		}
+		if (assigned != config.getVariables().size()) {
+			throw new IllegalArgumentException("Wrong set of variables");
+		}
+		if (mask == (1 << vars.size()) - 1) {
+			return get(bits);
+		}
+		if (doubleWeights != null) {
+			DoubleSemiRing<V> sr = doubleSemiRing;
+			double w = sr.zeroDouble();
+			for (int e = 0; e < indices.length; e++) {
+				if ((indices[e] & mask) == bits) w = sr.sumDouble(w, doubleWeights[e]);
+			}
+			return sr.fromDouble(w);
+		}
+		if (intWeights != null) {
+			IntSemiRing<V> sr = intSemiRing;
+			int w = sr.zeroInt();
+			for (int e = 0; e < indices.length; e++) {
+				if ((indices[e] & mask) == bits) w = sr.sumInt(w, intWeights[e]);
+			}
+			return sr.fromInt(w);
+		}
+		V w = semiRing.zero();
+		for (int e = 0; e < indices.length; e++) {
+			if ((indices[e] & mask) == bits) w = semiRing.sum(w, weights[e]);
+		}
+		return w;
+	}
+
+	/**
+	 * Return the marginal distribution over the given variables, in the
+	 * order of this distribution. The stored entries are sorted by their
+	 * index in the marginal and entries with the same index are summed.
+	 *
+	 * @param keep Variables to keep, all of which must be part of this distribution
+	 * @return Marginal distribution
+	 */
+	public SparseDistribution<V> marginalize(Collection<String> keep) {
+		if (!vars.containsAll(keep)) {
+			throw new IllegalArgumentException("Illegal variable, " + keep + " is not a subset of " + vars);
+		}
+		List<String> rest = new ArrayList<String>();
+		List<Integer> positions = new ArrayList<Integer>();
+		for (int k = 0; k < vars.size(); k++) {
+			if (keep.contains(vars.get(k))) {
+				rest.add(vars.get(k));
+				positions.add(k);
+			}
+		}
+
+		// Marginal index in the upper half, entry in the lower half: sorting keeps entries in order
+		long[] keys = new long[indices.length];
+		for (int e = 0; e < indices.length; e++) {
+			int p = 0;
+			for (int k = 0; k < positions.size(); k++) {
+				if ((indices[e] & (1 << positions.get(k))) != 0) p |= 1 << k;
+			}
+			keys[e] = (long)p << 32 | e;
+		}
+		Arrays.sort(keys);
+		int n = 0;
+		for (int r = 0; r < keys.length; r++) {
+			if (r == 0 || (keys[r] >>> 32) != (keys[r - 1] >>> 32)) n++;
+		}
+
+		SparseDistribution<V> dist = new SparseDistribution<V>(semiRing, rest, n);
+		int m = -1;
+		for (int r = 0; r < keys.length; r++) {
+			int e = (int)keys[r];
+			if (r == 0 || (keys[r] >>> 32) != (keys[r - 1] >>> 32)) {
+				m++;
+				dist.indices[m] = (int)(keys[r] >>> 32);
+				if (doubleWeights != null) dist.doubleWeights[m] = doubleWeights[e];
+				else if (intWeights != null) dist.intWeights[m] = intWeights[e];
+				else dist.weights[m] = weights[e];
+			} else if (doubleWeights != null) {
+				dist.doubleWeights[m] = doubleSemiRing.sumDouble(dist.doubleWeights[m], doubleWeights[e]);
+			} else if (intWeights != null) {
+				dist.intWeights[m] = intSemiRing.sumInt(dist.intWeights[m], intWeights[e]);
+			} else {
+				dist.weights[m] = semiRing.sum(dist.weights[m], weights[e]);
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * @return Dense copy of this distribution
+	 */
+	public DenseDistribution<V> toDense() {
+		DenseDistribution<V> dist = new DenseDistribution<V>(semiRing, vars);
+		for (int e = 0; e < indices.length; e++) {
+			if (doubleWeights != null) dist.setDouble(indices[e], doubleWeights[e]);
+			else if (intWeights != null) dist.setInt(indices[e], intWeights[e]);
+			else dist.set(indices[e], weights[e]);
+		}
+		return dist;
+	}
+
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int e = 0; e < indices.length; e++) {
+			Configuration config = new Configuration();
+			for (int k = 0; k < vars.size(); k++) {
+				config.putValue(vars.get(k), ((indices[e] >>> k) & 1) != 0);
+			}
+			s.append(config).append(": ").append(getEntry(e)).append("\n");
+		}
+		return s.toString();
+	}
+
+}
@@ -0,0 +1,144 @@
+package com.tr.sptools.base;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Enumerates all total configurations of a set of variables without
+ * materialising them.
+ *
+ * Configurations are visited in Gray-code order: configuration number i
+ * assigns true to variable k iff bit k of (i ^ (i >> 1)) is set, so that
+ * consecutive configurations differ in exactly one variable. Variables
+ * with larger domains use the reflected mixed-radix Gray code: digit k of
+ * i is read backwards (n-1-d instead of d) iff the number formed by the
+ * higher digits is odd, which reduces to the above for n = 2. A single
+ * mutable {@link Configuration} cursor is updated in place and passed to
+ * the consumer for every step. Consumers that want to retain a
+ * configuration must {@link Configuration#copy()} it.
+ *
+ * The spliterator splits by index range, so the enumeration can be
+ * processed in parallel. Each split has its own cursor.
+ */
+public class TotalConfigurationSpliterator implements Spliterator<Configuration> {
+
+	/** Minimum number of configurations in a split */
+	private static final long MIN_SPLIT_SIZE = 1 << 10;
+
+	private final String[] vars;
+
+	/** Number of values of each variable */
+	private final int[] sizes;
+
+	/** Product of the sizes of the variables before each variable, and of all variables */
+	private final long[] strides;
+
+	/** True iff all variables are binary */
+	private final boolean binary;
+
+	/** Index of the next configuration */
+	private long index;
+
+	/** Index after the last configuration */
+	private final long end;
+
+	/** Cursor, created lazily at the first advance */
+	private Configuration cursor;
+
+	public TotalConfigurationSpliterator(Collection<String> variables) {
+		this(variables, Collections.<String, Integer>emptyMap());
+	}
+
+	/**
+	 * @param variables Variables to enumerate
+	 * @param domainSizes Number of values of each variable, variables not in the map are binary
+	 */
+	public TotalConfigurationSpliterator(Collection<String> variables, Map<String, Integer> domainSizes) {
+		this.vars = variables.toArray(new String[variables.size()]);
+		this.sizes = new int[vars.length];
+		this.strides = new long[vars.length + 1];
+		strides[0] = 1;
+		boolean binary = true;
+		for (int k = 0; k < vars.length; k++) {
+			Integer size = domainSizes.get(vars[k]);
+			sizes[k] = size == null? 2: size;
+			binary &= sizes[k] == 2;
+			if (sizes[k] < 1 || strides[k] > Long.MAX_VALUE / sizes[k]) {
+				throw new IllegalArgumentException("Too many configurations to enumerate");
+			}
+			strides[k + 1] = strides[k] * sizes[k];
+		}
+		this.binary = binary;
+		this.index = 0;
+		this.end = strides[vars.length];
+	}
+
+	private TotalConfigurationSpliterator(TotalConfigurationSpliterator s, long index, long end) {
+		this.vars = s.vars;
+		this.sizes = s.sizes;
+		this.strides = s.strides;
+		this.binary = s.binary;
+		this.index = index;
+		this.end = end;
+	}
+
+	/**
+	 * @return Value of variable k in the configuration with the given index
+	 */
+	private int value(long index, int k) {
+		int d = (int)(index / strides[k] % sizes[k]);
+		return (index / strides[k + 1]) % 2 == 0? d: sizes[k] - 1 - d;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Configuration> action) {
+		if (index >= end) {
+			return false;
+		}
+		if (cursor == null) {
+			cursor = new Configuration();
+			for (int k = 0; k < vars.length; k++) {
+				cursor.putValue(vars[k], value(index, k));
+			}
+		} else {
+			// Gray codes of index-1 and index differ in the lowest non-zero digit of index
+			int k;
+			if (binary) {
+				k = Long.numberOfTrailingZeros(index);
+			} else {
+				k = 0;
+				while ((index / strides[k]) % sizes[k] == 0) k++;
+			}
+			cursor.putValue(vars[k], value(index, k));
+		}
+		index++;
+		action.accept(cursor);
+		return true;
+	}
+
+	@Override
+	public Spliterator<Configuration> trySplit() {
+		if (end - index < 2 * MIN_SPLIT_SIZE) {
+			return null;
+		}
+		long mid = (index + end) >>> 1;
+		TotalConfigurationSpliterator prefix = new TotalConfigurationSpliterator(this, index, mid);
+		index = mid;
+		cursor = null;
+		return prefix;
+	}
+
+	@Override
+	public long estimateSize() {
+		return end - index;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | SIZED | SUBSIZED | NONNULL;
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.tr.sptools.base;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps variable names to dense integer indices (0, 1, 2, ...).
+ *
+ * Indices are assigned in order of addition and never change, so that
+ * structures built over a dictionary (e.g. an {@link IndexedConfiguration})
+ * remain valid when more variables are added later.
+ */
+public class VariableDictionary {
+
+	private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+	private final List<String> names = new ArrayList<String>();
+
+	public VariableDictionary() {
+	}
+
+	public VariableDictionary(Collection<String> vars) {
+		for (String var: vars) {
+			add(var);
+		}
+	}
+
+	/**
+	 * Add variable to this dictionary, if it is not yet part of it.
+	 *
+	 * @return Index of the variable
+	 */
+	public int add(String var) {
+		Integer i = index.get(var);
+		if (i == null) {
+			i = names.size();
+			index.put(var, i);
+			names.add(var);
+		}
+		return i;
+	}
+
+	/**
+	 * @return Index of given variable, or -1 if it is not part of this dictionary
+	 */
+	public int indexOf(String var) {
+		Integer i = index.get(var);
+		return i == null? -1: i;
+	}
+
+	/**
+	 * @return Index of given variable
+	 * @throws IllegalArgumentException if the variable is not part of this dictionary
+	 */
+	public int getIndex(String var) {
+		Integer i = index.get(var);
+		if (i == null) {
+			throw new IllegalArgumentException("Unknown variable " + var);
+		}
+		return i;
+	}
+
+	/**
+	 * @return Variable with given index
+	 */
+	public String getVariable(int i) {
+		return names.get(i);
+	}
+
+	/**
+	 * @return All variables, ordered by index
+	 */
+	public List<String> getVariables() {
+		return Collections.unmodifiableList(names);
+	}
+
+	/**
+	 * @return Number of variables
+	 */
+	public int size() {
+		return names.size();
+	}
+
+	/**
+	 * @return Bit mask (one bit per variable index) of the given variables
+	 */
+	public long[] mask(Collection<String> vars) {
+		long[] mask = new long[(size() + 63) >>> 6];
+		for (String var: vars) {
+			int i = getIndex(var);
+			mask[i >>> 6] |= 1L << i;
+		}
+		return mask;
+	}
+
+}
@@ -19,6 +19,10 @@ import com.tr.sptools.semiring.SemiRing;
  * A CWT can represent a conditional probability table (CWT) of a 
  * Bayesian network but also a conditional ranking table (CRT) of 
  * a ranking network.
+ * 
+ * Variables are binary unless a different domain size is set with
+ * {@link #setDomainSize(String, int)}; a variable with n values takes
+ * the (integer-coded) values 0 .. n-1.
  *
  * @param <V> Type of value to use for weights (e.g. Double for probabilities)
  */
@@ -28,6 +32,9 @@ public class CWT<V> {
 	public final String var;
 	public final Set<String> parents;
 	public final Map<Configuration, Distribution<V>> table;
+
+	/** Number of values of the variable and of those parents that are not binary */
+	private final Map<String, Integer> domainSizes = new HashMap<String, Integer>();
 	
 	public CWT(SemiRing<V> semiRing, String var, Set<String> parents) {
 		this.semiRing = semiRing;
@@ -61,6 +68,42 @@ public class CWT<V> {
 		return vars;
 	}
 
+	/**
+	 * Set the number of values of this CWT's variable or one of its parents.
+	 * 
+	 * @return This CWT
+	 */
+	public CWT<V> setDomainSize(String v, int size) {
+		if (!v.equals(var) && !parents.contains(v)) {
+			throw new IllegalArgumentException("Illegal variable " + v);
+		}
+		if (size < 1) {
+			throw new IllegalArgumentException("Illegal domain size " + size + " for variable " + v);
+		}
+		domainSizes.put(v, size);
+		return this;
+	}
+
+	/**
+	 * @return Number of values of this CWT's variable or one of its parents (2 unless set)
+	 */
+	public int getDomainSize(String v) {
+		Integer size = domainSizes.get(v);
+		return size == null? 2: size;
+	}
+
+	/**
+	 * @return Number of values of this CWT's variable and of each of its parents
+	 */
+	public Map<String, Integer> getDomainSizes() {
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		sizes.put(var, getDomainSize(var));
+		for (String p: parents) {
+			sizes.put(p, getDomainSize(p));
+		}
+		return sizes;
+	}
+
 	/**
 	 * Set weights for the values of this CWT's variable, for the given parent configuration.
 	 */
@@ -68,6 +111,17 @@ public class CWT<V> {
 		setVarEntry(parentConfig, Distribution.singleton(semiRing, var, trueWeight, falseWeight));
 	}
 
+	/**
+	 * Set weights for the values of this CWT's variable, for the given
+	 * parent configuration. The i-th weight is the weight of value i.
+	 */
+	public void setVarEntry(Configuration parentConfig, List<V> weights) {
+		if (weights.size() != getDomainSize(var)) {
+			throw new IllegalArgumentException("Expected " + getDomainSize(var) + " weights for variable " + var);
+		}
+		setVarEntry(parentConfig, Distribution.singleton(semiRing, var, weights));
+	}
+
 	/**
 	 * Set weight distribution of this CWT's variable
 	 * for the given parent configuration.
@@ -76,25 +130,93 @@ public class CWT<V> {
 		if (!parentConfig.getVariables().equals(parents)) {
 			throw new IllegalArgumentException("Incorrect parent variables");
 		}
+		checkValues(parentConfig);
+		for (Configuration c: varDist.getConfigurations()) {
+			if (c.hasVariable(var)) checkValue(var, c.getIntValue(var));
+		}
 		table.put(parentConfig, varDist);
 	}
 
+	/**
+	 * @throws IllegalArgumentException If the given value is not in the domain of the given variable
+	 */
+	private void checkValue(String v, int value) {
+		if (value >= getDomainSize(v)) {
+			throw new IllegalArgumentException("Value " + value + " out of range for variable " + v + " with " + getDomainSize(v) + " values");
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException If the given parent configuration assigns a value outside the domain of a parent
+	 */
+	private void checkValues(Configuration parentConfig) {
+		for (String p: parents) {
+			checkValue(p, parentConfig.getIntValue(p));
+		}
+	}
+
+	/**
+	 * @return True iff the given parent configuration assigns every parent a value within its domain
+	 */
+	private boolean inRange(Configuration parentConfig) {
+		for (String p: parents) {
+			if (!parentConfig.hasVariable(p) || parentConfig.getIntValue(p) >= getDomainSize(p)) return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Return weight of the given value, given a parent configuraiton
 	 */
 	public V getWeight(boolean value, Configuration parentConfig) {
-		if (!isComplete()) throw new IllegalStateException("CWT incomplete");
+		return getWeight(value? 1: 0, parentConfig);
+	}
+
+	/**
+	 * Return weight of the given (integer-coded) value, given a parent configuration
+	 */
+	public V getWeight(int value, Configuration parentConfig) {
 		if (!parentConfig.getVariables().equals(parents)) {
 			throw new IllegalArgumentException("Incorrect parent variables");
 		}
+		checkValue(var, value);
+		checkValues(parentConfig);
 		if (!table.containsKey(parentConfig)) {
 			throw new IllegalStateException("Table incomplete for variable " + var + " and parent config " + parentConfig);
 		}
 		return table.get(parentConfig).getWeight(Configuration.singleton(var, value));
 	}
 
+	/**
+	 * @return Dense, immutable copy of this (complete) CWT for fast lookups
+	 */
+	public DenseCWT<V> toDense() {
+		return new DenseCWT<V>(this);
+	}
+
+	/**
+	 * @return Number of configurations of the parents
+	 */
+	public long getParentConfigurationCount() {
+		long n = 1;
+		for (String p: parents) {
+			n *= getDomainSize(p);
+		}
+		return n;
+	}
+
+	/**
+	 * @return True iff there is an entry for every configuration of the
+	 * parents, and no entry for parent values outside their domains
+	 */
 	public boolean isComplete() {
-		return (table.size() == (int)Math.pow(2, parents.size()));
+		if (table.size() != getParentConfigurationCount()) {
+			return false;
+		}
+		for (Configuration parentConfig: table.keySet()) {
+			if (!inRange(parentConfig)) return false;
+		}
+		return true;
 	}
 
 }
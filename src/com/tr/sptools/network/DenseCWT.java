@@ -0,0 +1,200 @@
+package com.tr.sptools.network;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.IntSemiRing;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * Dense, immutable form of a {@link CWT}.
+ *
+ * Weights are stored in a single array indexed by the parent configuration
+ * in mixed radix: the parent index is the sum of value * stride over the
+ * parents (in the order of {@link CWT#getParents()}), where the stride of
+ * a parent is the product of the domain sizes of the parents before it.
+ * For binary parents, bit k of the parent index holds the value of the
+ * k-th parent. The weights of the n values for the same parent
+ * configuration are adjacent, at n * parentIndex + value.
+ *
+ * For semirings with a primitive specialization the weights are stored
+ * in a double[] or int[], i.e. 16 or 8 bytes per parent configuration of
+ * a binary variable.
+ *
+ * @param <V> Type of value to use for weights (e.g. Double for probabilities)
+ */
+public class DenseCWT<V> {
+
+	private final SemiRing<V> semiRing;
+	private final String var;
+	private final List<String> parents;
+
+	/** Number of values of the variable */
+	private final int size;
+
+	/** Stride of each parent in the parent index */
+	private final int[] strides;
+
+	/** Number of values of each parent */
+	private final int[] parentSizes;
+
+	/** Weights, exactly one of these is non-null */
+	private final double[] doubleWeights;
+	private final int[] intWeights;
+	private final V[] weights;
+
+	/** The semiring as a primitive specialization, at most one of these is non-null */
+	private final DoubleSemiRing<V> doubleSemiRing;
+	private final IntSemiRing<V> intSemiRing;
+
+	@SuppressWarnings("unchecked")
+	public DenseCWT(CWT<V> cwt) {
+		if (!cwt.isComplete()) throw new IllegalStateException("CWT incomplete");
+		this.semiRing = cwt.semiRing;
+		this.var = cwt.getVariable();
+		this.parents = Collections.unmodifiableList(cwt.getParents());
+		this.size = cwt.getDomainSize(var);
+		this.strides = new int[parents.size()];
+		this.parentSizes = new int[parents.size()];
+		long count = 1;
+		for (int k = 0; k < parents.size(); k++) {
+			strides[k] = (int)count;
+			parentSizes[k] = cwt.getDomainSize(parents.get(k));
+			count *= parentSizes[k];
+			if (count * size > 1 << 30) {
+				throw new IllegalArgumentException("CWT too large: " + parents.size() + " parents");
+			}
+		}
+		int n = (int)count * size;
+		this.doubleSemiRing = DoubleSemiRing.of(semiRing);
+		this.intSemiRing = doubleSemiRing == null? IntSemiRing.of(semiRing): null;
+		this.doubleWeights = doubleSemiRing != null? new double[n]: null;
+		this.intWeights = intSemiRing != null? new int[n]: null;
+		this.weights = doubleWeights == null && intWeights == null? (V[])new Object[n]: null;
+		for (int p = 0; p < count; p++) {
+			Configuration parentConfig = new Configuration();
+			for (int k = 0; k < parents.size(); k++) {
+				parentConfig.putValue(parents.get(k), p / strides[k] % cwt.getDomainSize(parents.get(k)));
+			}
+			for (int v = 0; v < size; v++) {
+				V w = cwt.getWeight(v, parentConfig);
+				if (doubleWeights != null) doubleWeights[size * p + v] = doubleSemiRing.toDouble(w);
+				else if (intWeights != null) intWeights[size * p + v] = intSemiRing.toInt(w);
+				else weights[size * p + v] = w;
+			}
+		}
+	}
+
+	/**
+	 * @return The variable of this CWT
+	 */
+	public String getVariable() {
+		return var;
+	}
+
+	/**
+	 * @return Parent variables of this CWT, in index order
+	 */
+	public List<String> getParents() {
+		return parents;
+	}
+
+	public SemiRing<V> getSemiRing() {
+		return semiRing;
+	}
+
+	/**
+	 * @return Number of values of the variable
+	 */
+	public int getDomainSize() {
+		return size;
+	}
+
+	/**
+	 * @return Stride of the k-th parent in the parent index
+	 */
+	public int getParentStride(int k) {
+		return strides[k];
+	}
+
+	/**
+	 * @return Index of the parent configuration contained in the given
+	 * configuration, which must assign all parents (and may assign more variables)
+	 */
+	public int parentIndex(Configuration config) {
+		int p = 0;
+		for (int k = 0; k < parents.size(); k++) {
+			int value = config.getIntValue(parents.get(k));
+			if (value < 0 || value >= parentSizes[k]) {
+				throw new IllegalArgumentException("Value " + value + " out of range for variable " + parents.get(k) + " with " + parentSizes[k] + " values");
+			}
+			p += value * strides[k];
+		}
+		return p;
+	}
+
+	/**
+	 * @return Weight of the given value, given the parent configuration with the given index
+	 */
+	public V getWeight(boolean value, int parentIndex) {
+		return getWeight(value? 1: 0, parentIndex);
+	}
+
+	/**
+	 * @return Weight of the given (integer-coded) value, given the parent configuration with the given index
+	 */
+	public V getWeight(int value, int parentIndex) {
+		checkValue(value);
+		int i = size * parentIndex + value;
+		if (doubleWeights != null) return doubleSemiRing.fromDouble(doubleWeights[i]);
+		if (intWeights != null) return intSemiRing.fromInt(intWeights[i]);
+		return weights[i];
+	}
+
+	/**
+	 * @return Weight of the given value, given the parents' values in the given configuration
+	 */
+	public V getWeight(boolean value, Configuration config) {
+		return getWeight(value, parentIndex(config));
+	}
+
+	/**
+	 * @return Weight of the variable's value in the given configuration, which must assign the variable and its parents
+	 */
+	public V getWeight(Configuration config) {
+		return getWeight(config.getIntValue(var), parentIndex(config));
+	}
+
+	/**
+	 * Unboxed weight lookup, for CWTs over a DoubleSemiRing.
+	 */
+	public double getDoubleWeight(boolean value, int parentIndex) {
+		return getDoubleWeight(value? 1: 0, parentIndex);
+	}
+
+	public double getDoubleWeight(int value, int parentIndex) {
+		checkValue(value);
+		return doubleWeights[size * parentIndex + value];
+	}
+
+	/**
+	 * Unboxed weight lookup, for CWTs over an IntSemiRing.
+	 */
+	public int getIntWeight(boolean value, int parentIndex) {
+		return getIntWeight(value? 1: 0, parentIndex);
+	}
+
+	public int getIntWeight(int value, int parentIndex) {
+		checkValue(value);
+		return intWeights[size * parentIndex + value];
+	}
+
+	private void checkValue(int value) {
+		if (value < 0 || value >= size) {
+			throw new IllegalArgumentException("Value " + value + " out of range for variable " + var + " with " + size + " values");
+		}
+	}
+
+}
@@ -0,0 +1,367 @@
+package com.tr.sptools.network;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * A factor maps every configuration of a set of variables to a weight.
+ *
+ * Weights are stored in an array indexed by a configuration in mixed
+ * radix: the index is the sum of value * stride over the variables, where
+ * the stride of the k-th variable is the product of the domain sizes of
+ * the variables before it. For binary variables, bit k of the index holds
+ * the value of the k-th variable.
+ *
+ * @param <V> Type of value to use for weights (e.g. Double for probabilities)
+ */
+public class Factor<V> {
+
+	private final SemiRing<V> semiRing;
+	private final List<String> vars;
+
+	/** Number of values of each variable */
+	private final int[] sizes;
+
+	/** Stride of each variable in the index */
+	private final int[] strides;
+
+	private final V[] values;
+
+	/**
+	 * Create a factor over the given binary variables.
+	 */
+	public Factor(SemiRing<V> semiRing, List<String> vars) {
+		this(semiRing, vars, binary(vars.size()));
+	}
+
+	/**
+	 * Create a factor over the given variables, with the given number of values per variable.
+	 */
+	@SuppressWarnings("unchecked")
+	public Factor(SemiRing<V> semiRing, List<String> vars, int[] sizes) {
+		if (sizes.length != vars.size()) {
+			throw new IllegalArgumentException("Expected " + vars.size() + " domain sizes");
+		}
+		this.semiRing = semiRing;
+		this.vars = Collections.unmodifiableList(new ArrayList<String>(vars));
+		this.sizes = sizes.clone();
+		this.strides = new int[sizes.length];
+		long n = 1;
+		for (int k = 0; k < sizes.length; k++) {
+			strides[k] = (int)n;
+			n *= sizes[k];
+			if (n > 1 << 30) {
+				throw new IllegalArgumentException("Factor too large: " + vars.size() + " variables");
+			}
+		}
+		this.values = (V[])new Object[(int)n];
+	}
+
+	private static int[] binary(int n) {
+		int[] sizes = new int[n];
+		Arrays.fill(sizes, 2);
+		return sizes;
+	}
+
+	/**
+	 * Create a factor holding the weights of a CWT. The variables of the
+	 * factor are the CWT's variable followed by its parents.
+	 */
+	public static <V> Factor<V> fromCWT(CWT<V> cwt) {
+		DenseCWT<V> dense = cwt.toDense();
+		List<String> vars = new ArrayList<String>();
+		vars.add(dense.getVariable());
+		vars.addAll(dense.getParents());
+		int[] sizes = new int[vars.size()];
+		for (int k = 0; k < sizes.length; k++) {
+			sizes[k] = cwt.getDomainSize(vars.get(k));
+		}
+		// The index of the factor is the index of the dense CWT
+		Factor<V> f = new Factor<V>(cwt.semiRing, vars, sizes);
+		int n = dense.getDomainSize();
+		for (int i = 0; i < f.values.length; i++) {
+			f.values[i] = dense.getWeight(i % n, i / n);
+		}
+		return f;
+	}
+
+	/**
+	 * @return The variables of this factor, in index order
+	 */
+	public List<String> getVariables() {
+		return vars;
+	}
+
+	/**
+	 * @return Number of values of the given variable of this factor
+	 */
+	public int getDomainSize(String var) {
+		int k = vars.indexOf(var);
+		if (k < 0) {
+			throw new IllegalArgumentException("Illegal variable " + var);
+		}
+		return sizes[k];
+	}
+
+	public SemiRing<V> getSemiRing() {
+		return semiRing;
+	}
+
+	/**
+	 * @return Copy of this factor that uses the given semiring, which must have the same value type
+	 */
+	public Factor<V> withSemiRing(SemiRing<V> other) {
+		Factor<V> f = new Factor<V>(other, vars, sizes);
+		System.arraycopy(values, 0, f.values, 0, values.length);
+		return f;
+	}
+
+	/**
+	 * @return Number of entries of this factor
+	 */
+	public int size() {
+		return values.length;
+	}
+
+	/**
+	 * @return Weight stored at the given index
+	 */
+	public V get(int index) {
+		return values[index];
+	}
+
+	public void set(int index, V value) {
+		values[index] = value;
+	}
+
+	/**
+	 * @return Index of the entry matching the given configuration, which must assign all variables of this factor
+	 */
+	public int indexOf(Configuration config) {
+		int index = 0;
+		for (int k = 0; k < vars.size(); k++) {
+			index += valueOf(config, k) * strides[k];
+		}
+		return index;
+	}
+
+	/**
+	 * @return Value of the k-th variable in the given configuration
+	 * @throws IllegalArgumentException If the value is outside the domain of the variable
+	 */
+	private int valueOf(Configuration config, int k) {
+		int value = config.getIntValue(vars.get(k));
+		if (value >= sizes[k]) {
+			throw new IllegalArgumentException("Value " + value + " out of range for variable " + vars.get(k) + " with " + sizes[k] + " values");
+		}
+		return value;
+	}
+
+	/**
+	 * @return Weight of the given configuration, which must assign all variables of this factor
+	 */
+	public V getWeight(Configuration config) {
+		return values[indexOf(config)];
+	}
+
+	/**
+	 * @return Stride (in an index of this factor) for each of the given variables, or 0 for variables not in this factor
+	 */
+	int[] stridesOf(List<String> others) {
+		int[] res = new int[others.size()];
+		for (int k = 0; k < others.size(); k++) {
+			int pos = vars.indexOf(others.get(k));
+			res[k] = pos < 0? 0: strides[pos];
+		}
+		return res;
+	}
+
+	/**
+	 * @return Sizes of the given variables, taken from this factor or (if not found) the other factor
+	 */
+	private int[] sizesOf(List<String> others, Factor<V> other) {
+		int[] res = new int[others.size()];
+		for (int k = 0; k < others.size(); k++) {
+			int pos = vars.indexOf(others.get(k));
+			res[k] = pos >= 0? sizes[pos]: other.sizes[other.vars.indexOf(others.get(k))];
+		}
+		return res;
+	}
+
+	/**
+	 * Odometer over the indices of a factor, which tracks the matching
+	 * index of another factor (given by the strides of the variables of
+	 * the first factor in the other factor).
+	 */
+	private static class Cursor {
+		private final int[] sizes;
+		private final int[] strides;
+		private final int[] digits;
+		int index;
+
+		Cursor(int[] sizes, int[] strides) {
+			this.sizes = sizes;
+			this.strides = strides;
+			this.digits = new int[sizes.length];
+		}
+
+		void next() {
+			for (int k = 0; k < digits.length; k++) {
+				index += strides[k];
+				if (++digits[k] < sizes[k]) return;
+				index -= strides[k] * sizes[k];
+				digits[k] = 0;
+			}
+		}
+	}
+
+	/**
+	 * @return Product of this factor and the given factor
+	 */
+	public Factor<V> product(Factor<V> other) {
+		Set<String> union = new LinkedHashSet<String>(vars);
+		union.addAll(other.vars);
+		List<String> list = new ArrayList<String>(union);
+		Factor<V> f = new Factor<V>(semiRing, list, sizesOf(list, other));
+		Cursor c1 = new Cursor(f.sizes, stridesOf(f.vars));
+		Cursor c2 = new Cursor(f.sizes, other.stridesOf(f.vars));
+		for (int i = 0; i < f.values.length; i++) {
+			f.values[i] = semiRing.product(values[c1.index], other.values[c2.index]);
+			c1.next();
+			c2.next();
+		}
+		return f;
+	}
+
+	/**
+	 * @return Factor over the remaining variables, summing out the given variables
+	 */
+	public Factor<V> sumOut(Collection<String> out) {
+		List<String> rest = new ArrayList<String>(vars);
+		rest.removeAll(out);
+		Factor<V> f = new Factor<V>(semiRing, rest, sizesOf(rest, this));
+		for (int i = 0; i < f.values.length; i++) {
+			f.values[i] = semiRing.zero();
+		}
+		Cursor c = new Cursor(sizes, f.stridesOf(vars));
+		for (int i = 0; i < values.length; i++) {
+			f.values[c.index] = semiRing.sum(f.values[c.index], values[i]);
+			c.next();
+		}
+		return f;
+	}
+
+	/**
+	 * @return Factor over the variables not assigned by the evidence, holding
+	 * the entries of this factor that are consistent with the evidence
+	 */
+	public Factor<V> reduce(Configuration evidence) {
+		List<String> rest = new ArrayList<String>();
+		int fixed = 0;
+		for (int k = 0; k < vars.size(); k++) {
+			String var = vars.get(k);
+			if (evidence.hasVariable(var)) {
+				fixed += valueOf(evidence, k) * strides[k];
+			} else {
+				rest.add(var);
+			}
+		}
+		if (rest.size() == vars.size()) {
+			return this;
+		}
+		Factor<V> f = new Factor<V>(semiRing, rest, sizesOf(rest, this));
+		Cursor c = new Cursor(f.sizes, stridesOf(rest));
+		for (int i = 0; i < f.values.length; i++) {
+			f.values[i] = values[c.index + fixed];
+			c.next();
+		}
+		return f;
+	}
+
+	/**
+	 * @return Factor over the same variables, with the entries that are
+	 * inconsistent with the evidence set to zero()
+	 */
+	public Factor<V> select(Configuration evidence) {
+		boolean any = false;
+		for (String var: vars) {
+			any |= evidence.hasVariable(var);
+		}
+		if (!any) {
+			return this;
+		}
+		Factor<V> f = new Factor<V>(semiRing, vars, sizes);
+		int[] digits = new int[vars.size()];
+		int[] required = new int[vars.size()];
+		for (int k = 0; k < vars.size(); k++) {
+			required[k] = evidence.hasVariable(vars.get(k))? valueOf(evidence, k): -1;
+		}
+		for (int i = 0; i < values.length; i++) {
+			boolean consistent = true;
+			for (int k = 0; k < digits.length && consistent; k++) {
+				consistent = required[k] < 0 || digits[k] == required[k];
+			}
+			f.values[i] = consistent? values[i]: semiRing.zero();
+			for (int k = 0; k < digits.length; k++) {
+				if (++digits[k] < sizes[k]) break;
+				digits[k] = 0;
+			}
+		}
+		return f;
+	}
+
+	/**
+	 * @return Factor over the given binary variables with all entries set to one()
+	 */
+	public static <V> Factor<V> unit(SemiRing<V> semiRing, List<String> vars) {
+		return unit(semiRing, vars, binary(vars.size()));
+	}
+
+	/**
+	 * @return Factor over the given variables with all entries set to one()
+	 */
+	public static <V> Factor<V> unit(SemiRing<V> semiRing, List<String> vars, int[] sizes) {
+		Factor<V> f = new Factor<V>(semiRing, vars, sizes);
+		for (int i = 0; i < f.values.length; i++) {
+			f.values[i] = semiRing.one();
+		}
+		return f;
+	}
+
+	/**
+	 * @return Product of the given factors (a factor over no variables with value one() if there are none)
+	 */
+	public static <V> Factor<V> product(SemiRing<V> semiRing, Collection<Factor<V>> factors) {
+		Factor<V> res = null;
+		for (Factor<V> f: factors) {
+			res = res == null? f: res.product(f);
+		}
+		if (res == null) {
+			res = new Factor<V>(semiRing, Collections.<String>emptyList());
+			res.values[0] = semiRing.one();
+		}
+		return res;
+	}
+
+	public String toString() {
+		String s = "";
+		for (int i = 0; i < values.length; i++) {
+			s += "{";
+			for (int k = 0; k < vars.size(); k++) {
+				int value = i / strides[k] % sizes[k];
+				s += "(" + vars.get(k) + ":" + (value == 0? "F": value == 1? "T": String.valueOf(value)) + ")";
+			}
+			s += "}: " + values[i] + "\n";
+		}
+		return s;
+	}
+
+}
@@ -0,0 +1,363 @@
+package com.tr.sptools.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.Distribution;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * Junction tree (clique tree) compiled from a {@link Network}.
+ *
+ * The cliques are obtained by triangulating the network along a min-fill
+ * elimination order, and connected by a maximum spanning tree over their
+ * separator sizes. Each CWT is assigned to one clique that contains its
+ * family.
+ *
+ * Inference uses Shafer-Shenoy message passing, which needs only the sum
+ * and product of the semiring. Messages and clique beliefs are cached. When
+ * the evidence changes, only the messages that depend on cliques holding
+ * changed evidence variables are recomputed. After one calibration, all
+ * single-variable marginals are read from the cached clique beliefs.
+ *
+ * @param <V> Value type for weights (e.g. double for probabilities)
+ */
+public class JunctionTree<V> {
+
+	private final SemiRing<V> semiRing;
+
+	/** Variables of each clique */
+	private final List<List<String>> cliques = new ArrayList<List<String>>();
+
+	/** Neighbours of each clique in the tree */
+	private final List<List<Integer>> neighbours = new ArrayList<List<Integer>>();
+
+	/** Product of the CWT factors assigned to each clique, over all variables of the clique */
+	private final List<Factor<V>> potentials = new ArrayList<Factor<V>>();
+
+	/** Clique to which each variable's evidence is assigned */
+	private final Map<String, Integer> home = new HashMap<String, Integer>();
+
+	/** messages[i][k] is the cached message from clique i to its k-th neighbour (null if invalid) */
+	private Factor<V>[][] messages;
+
+	/** Cached belief of each clique (null if invalid) */
+	private Factor<V>[] beliefs;
+
+	private Configuration evidence = new Configuration();
+
+	/**
+	 * Compile the given network into a junction tree.
+	 */
+	public JunctionTree(Network<V> network) {
+		this.semiRing = network.getSemiRing();
+
+		List<Factor<V>> factors = new ArrayList<Factor<V>>();
+		for (CWT<V> cpt: network.getCPTs()) {
+			factors.add(Factor.fromCWT(cpt));
+		}
+
+		buildCliques(factors, new VariableElimination<V>(network).getEliminationOrder(factors, network.getVariables()));
+		buildTree();
+
+		// Assign each factor to the smallest clique containing its variables
+		for (List<String> clique: cliques) {
+			int[] sizes = new int[clique.size()];
+			for (int k = 0; k < sizes.length; k++) {
+				sizes[k] = network.getDomainSize(clique.get(k));
+			}
+			potentials.add(Factor.unit(semiRing, clique, sizes));
+		}
+		for (Factor<V> f: factors) {
+			int c = smallestCliqueContaining(f.getVariables());
+			potentials.set(c, potentials.get(c).product(f));
+		}
+		for (String var: network.getVariables()) {
+			home.put(var, smallestCliqueContaining(Collections.singletonList(var)));
+		}
+
+		// Generic arrays cannot be created directly
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Factor<V>[][] m = new Factor[cliques.size()][];
+		for (int i = 0; i < cliques.size(); i++) {
+			@SuppressWarnings({"unchecked", "rawtypes"})
+			Factor<V>[] row = new Factor[neighbours.get(i).size()];
+			m[i] = row;
+		}
+		@SuppressWarnings({"unchecked", "rawtypes"})
+		Factor<V>[] b = new Factor[cliques.size()];
+		messages = m;
+		beliefs = b;
+	}
+
+	/**
+	 * Triangulate the interaction graph of the factors by eliminating
+	 * variables in the given order, and keep the maximal cliques.
+	 */
+	private void buildCliques(List<Factor<V>> factors, List<String> order) {
+		Map<String, Set<String>> graph = new HashMap<String, Set<String>>();
+		for (Factor<V> f: factors) {
+			for (String v: f.getVariables()) {
+				Set<String> adj = graph.get(v);
+				if (adj == null) {
+					adj = new HashSet<String>();
+					graph.put(v, adj);
+				}
+				adj.addAll(f.getVariables());
+				adj.remove(v);
+			}
+		}
+		List<Set<String>> clusters = new ArrayList<Set<String>>();
+		for (String v: order) {
+			Set<String> adj = graph.remove(v);
+			Set<String> cluster = new LinkedHashSet<String>();
+			cluster.add(v);
+			cluster.addAll(adj);
+			clusters.add(cluster);
+			for (String a: adj) {
+				Set<String> n = graph.get(a);
+				n.remove(v);
+				n.addAll(adj);
+				n.remove(a);
+			}
+		}
+		// A cluster can only be contained in a cluster of an earlier eliminated variable
+		outer: for (int i = 0; i < clusters.size(); i++) {
+			for (int j = 0; j < i; j++) {
+				if (clusters.get(j).containsAll(clusters.get(i))) continue outer;
+			}
+			cliques.add(new ArrayList<String>(clusters.get(i)));
+		}
+	}
+
+	/**
+	 * Connect the cliques by a maximum spanning tree over separator sizes.
+	 * Cliques that share no variables are connected by empty separators.
+	 */
+	private void buildTree() {
+		int n = cliques.size();
+		Map<String, List<Integer>> cliquesOf = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < n; i++) {
+			neighbours.add(new ArrayList<Integer>());
+			for (String var: cliques.get(i)) {
+				if (!cliquesOf.containsKey(var)) cliquesOf.put(var, new ArrayList<Integer>());
+				cliquesOf.get(var).add(i);
+			}
+		}
+		Set<Long> pairs = new LinkedHashSet<Long>();
+		for (List<Integer> cs: cliquesOf.values()) {
+			for (int a = 0; a < cs.size(); a++) {
+				for (int b = a + 1; b < cs.size(); b++) {
+					pairs.add((long)cs.get(a) * n + cs.get(b));
+				}
+			}
+		}
+		List<int[]> edges = new ArrayList<int[]>();
+		for (long pair: pairs) {
+			int i = (int)(pair / n);
+			int j = (int)(pair % n);
+			edges.add(new int[] { i, j, separator(i, j).size() });
+		}
+		for (int i = 1; i < n; i++) {
+			edges.add(new int[] { 0, i, 0 });
+		}
+		Collections.sort(edges, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] e1, int[] e2) {
+				return Integer.compare(e2[2], e1[2]);
+			}
+		});
+		int[] component = new int[n];
+		for (int i = 0; i < n; i++) component[i] = i;
+		for (int[] e: edges) {
+			int c1 = find(component, e[0]);
+			int c2 = find(component, e[1]);
+			if (c1 != c2) {
+				component[c1] = c2;
+				neighbours.get(e[0]).add(e[1]);
+				neighbours.get(e[1]).add(e[0]);
+			}
+		}
+	}
+
+	private static int find(int[] component, int i) {
+		while (component[i] != i) {
+			component[i] = component[component[i]];
+			i = component[i];
+		}
+		return i;
+	}
+
+	private List<String> separator(int i, int j) {
+		List<String> sep = new ArrayList<String>(cliques.get(i));
+		sep.retainAll(cliques.get(j));
+		return sep;
+	}
+
+	private int smallestCliqueContaining(List<String> vars) {
+		int best = -1;
+		for (int i = 0; i < cliques.size(); i++) {
+			if (cliques.get(i).containsAll(vars) && (best < 0 || cliques.get(i).size() < cliques.get(best).size())) {
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Set the evidence for subsequent queries. Only messages that depend on
+	 * the cliques of variables whose evidence changed are invalidated.
+	 */
+	public void setEvidence(Configuration evidence) {
+		Set<String> changed = new HashSet<String>();
+		for (String var: this.evidence.getVariables()) {
+			if (!evidence.hasVariable(var) || evidence.getIntValue(var) != this.evidence.getIntValue(var)) changed.add(var);
+		}
+		for (String var: evidence.getVariables()) {
+			if (!home.containsKey(var)) {
+				throw new IllegalArgumentException("Illegal variable " + var);
+			}
+			int size = potentials.get(home.get(var)).getDomainSize(var);
+			if (evidence.getIntValue(var) >= size) {
+				throw new IllegalArgumentException("Value " + evidence.getIntValue(var) + " out of range for variable " + var + " with " + size + " values");
+			}
+			if (!this.evidence.hasVariable(var)) changed.add(var);
+		}
+		this.evidence = evidence.copy();
+		Set<Integer> changedCliques = new HashSet<Integer>();
+		for (String var: changed) {
+			changedCliques.add(home.get(var));
+		}
+		for (int c: changedCliques) {
+			beliefs[c] = null;
+			invalidateFrom(c, -1);
+		}
+	}
+
+	/**
+	 * Invalidate all messages directed away from clique i (not towards the given parent).
+	 */
+	private void invalidateFrom(int i, int parent) {
+		List<Integer> adj = neighbours.get(i);
+		for (int k = 0; k < adj.size(); k++) {
+			int j = adj.get(k);
+			if (j == parent || messages[i][k] == null) continue;
+			messages[i][k] = null;
+			beliefs[j] = null;
+			invalidateFrom(j, i);
+		}
+	}
+
+	/**
+	 * @return The current evidence
+	 */
+	public Configuration getEvidence() {
+		return evidence.copy();
+	}
+
+	/**
+	 * @return Potential of clique i with the evidence of its home variables applied
+	 */
+	private Factor<V> getPotential(int i) {
+		Configuration local = new Configuration();
+		for (String var: evidence.getVariables()) {
+			if (home.get(var) == i) local.putValue(var, evidence.getIntValue(var));
+		}
+		return potentials.get(i).select(local);
+	}
+
+	/**
+	 * @return Message from clique i to its k-th neighbour
+	 */
+	private Factor<V> getMessage(int i, int k) {
+		if (messages[i][k] == null) {
+			List<Integer> adj = neighbours.get(i);
+			int j = adj.get(k);
+			Factor<V> f = getPotential(i);
+			for (int l = 0; l < adj.size(); l++) {
+				if (l != k) f = f.product(getMessage(adj.get(l), neighbours.get(adj.get(l)).indexOf(i)));
+			}
+			List<String> out = new ArrayList<String>(cliques.get(i));
+			out.removeAll(cliques.get(j));
+			messages[i][k] = f.sumOut(out);
+		}
+		return messages[i][k];
+	}
+
+	/**
+	 * @return Belief of clique i: the joint weights of its variables and the evidence
+	 */
+	private Factor<V> getBelief(int i) {
+		if (beliefs[i] == null) {
+			Factor<V> f = getPotential(i);
+			List<Integer> adj = neighbours.get(i);
+			for (int l = 0; l < adj.size(); l++) {
+				f = f.product(getMessage(adj.get(l), neighbours.get(adj.get(l)).indexOf(i)));
+			}
+			beliefs[i] = f;
+		}
+		return beliefs[i];
+	}
+
+	/**
+	 * Return the joint weights of the values of a variable together with
+	 * the current evidence.
+	 *
+	 * @param var A variable of the network
+	 * @return Distribution over the variable
+	 */
+	public Distribution<V> getMarginal(String var) {
+		Integer c = home.get(var);
+		if (c == null) {
+			throw new IllegalArgumentException("Illegal variable " + var);
+		}
+		List<String> out = new ArrayList<String>(cliques.get(c));
+		out.remove(var);
+		Factor<V> f = getBelief(c).sumOut(out);
+		List<V> weights = new ArrayList<V>();
+		for (int value = 0; value < f.getDomainSize(var); value++) {
+			weights.add(f.getWeight(Configuration.singleton(var, value)));
+		}
+		return Distribution.singleton(semiRing, var, weights);
+	}
+
+	/**
+	 * Calibrate the tree and return the marginals of all variables.
+	 *
+	 * @return Marginal of each variable, see {@link #getMarginal(String)}
+	 */
+	public Map<String, Distribution<V>> getMarginals() {
+		Map<String, Distribution<V>> res = new LinkedHashMap<String, Distribution<V>>();
+		for (String var: home.keySet()) {
+			res.put(var, getMarginal(var));
+		}
+		return res;
+	}
+
+	/**
+	 * @return Weight of the current evidence
+	 */
+	public V getEvidenceWeight() {
+		if (cliques.isEmpty()) {
+			return semiRing.one();
+		}
+		return getBelief(0).sumOut(cliques.get(0)).get(0);
+	}
+
+	/**
+	 * @return Variables of the cliques of this junction tree
+	 */
+	public List<List<String>> getCliques() {
+		return Collections.unmodifiableList(cliques);
+	}
+
+}
@@ -3,16 +3,24 @@ package com.tr.sptools.network;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import com.tr.sptools.base.AbstractDistribution;
 import com.tr.sptools.base.BaseTools;
 import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.DenseDistribution;
 import com.tr.sptools.base.Distribution;
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.IntSemiRing;
 import com.tr.sptools.semiring.SemiRing;
 
 /**
@@ -21,29 +29,54 @@ import com.tr.sptools.semiring.SemiRing;
  * It can utilize an arbitrary semiring for its values.  This includes probabilities but also ranks.
  * 
  * The structure of the BN is determined by the set of CPNs, which specify a variable and its parents.
+ * 
+ * Variables have finite domains; the domain size of a variable is taken from its CPT.
  *
  * @param <V> Value type for weights (e.g. double for probabilities)
  */
 public class Network<V> implements AbstractDistribution<V> {
 
+	/** Number of configurations per parallel task of getDenseDistribution */
+	private static final int RANGE_SIZE = 1 << 12;
+
 	/** Semiring in use */
 	private final SemiRing<V> semiRing;
 	
-	/** The conditional probability tables (CPTs) of this BN */
-	public List<CWT<V>> cpts;
+	/** The conditional probability tables (CPTs) of this BN (unmodifiable) */
+	private final List<CWT<V>> cpts;
+
+	/*
+	 * Structure of the BN, built by check(). Call check() again after
+	 * modifying one of the CPTs.
+	 */
+
+	/** CPT of each variable, in the order of the CPTs */
+	private Map<String, CWT<V>> cptIndex;
+
+	/** Children of each variable */
+	private Map<String, List<String>> children;
+
+	/** Variables, parents before children */
+	private List<String> topologicalOrder;
+
+	/** Number of values of each variable */
+	private Map<String, Integer> domainSizes;
 	
 	/**
 	 * Construct BN with given semiring and CPTs.
 	 */
 	public Network(SemiRing<V> semiRing, List<CWT<V>> cpts) {
 		this.semiRing = semiRing;
-		this.cpts = cpts;
+		this.cpts = Collections.unmodifiableList(new ArrayList<CWT<V>>(cpts));
 		check();
 	}
 	
 	/**
-	 * Check if this BN is OK:
-	 * - All 
+	 * Check if this BN is OK, and (re)build its structure:
+	 * - All variables are unique
+	 * - All parents exist
+	 * - The graph is acyclic
+	 * - The CPTs agree on the domain sizes of the variables
 	 */
 	public void check() {
 		if (!areAllVariablesUnique()) {
@@ -55,51 +88,139 @@ public class Network<V> implements AbstractDistribution<V> {
 		if (!isGraphLoopFree()) {
 			throw new IllegalStateException("Cycle detected");
 		}
+		if (!areDomainSizesConsistent()) {
+			throw new IllegalStateException("Inconsistent domain sizes");
+		}
 	}
 	
 	/**
+	 * Build the CPT index.
+	 * 
 	 * @return True iff every variable in this BN is unique
 	 */
 	private boolean areAllVariablesUnique() {
-		Set<String> vars = new HashSet<String>();
+		cptIndex = new LinkedHashMap<String, CWT<V>>();
 		for (CWT<V> cpt: cpts) {
-			if (!vars.add(cpt.var)) return false;
+			if (cptIndex.put(cpt.var, cpt) != null) return false;
 		}
 		return true;
 	}
 
 	/**
+	 * Build the children lists.
+	 * 
 	 * @return True if for each parent var in each CPT, the var exists in this BN.
 	 */
 	private boolean doAllParentsExist() {
-		Set<String> vars = new HashSet<String>();
-		vars.addAll(getVariables());
+		children = new HashMap<String, List<String>>();
+		for (String var: cptIndex.keySet()) {
+			children.put(var, new ArrayList<String>());
+		}
 		for (CWT<V> cpt: cpts) {
 			for (String parent: cpt.parents) {
-				if (!vars.contains(parent)) return false;
+				if (!children.containsKey(parent)) return false;
+				children.get(parent).add(cpt.var);
 			}
 		}
 		return true;
 	}
 
 	/**
+	 * Build the topological order (Kahn's algorithm).
+	 * 
 	 * @return True iff the BN graph is acyclic
 	 */
 	private boolean isGraphLoopFree() {
-		for (String var: getVariables()) {
-			if (isDescendant(var, var)) return false;
+		Map<String, Integer> missingParents = new HashMap<String, Integer>();
+		List<String> order = new ArrayList<String>();
+		for (CWT<V> cpt: cpts) {
+			missingParents.put(cpt.var, cpt.parents.size());
+			if (cpt.parents.isEmpty()) order.add(cpt.var);
 		}
+		for (int i = 0; i < order.size(); i++) {
+			for (String child: children.get(order.get(i))) {
+				int n = missingParents.get(child) - 1;
+				missingParents.put(child, n);
+				if (n == 0) order.add(child);
+			}
+		}
+		topologicalOrder = Collections.unmodifiableList(order);
+		return order.size() == cpts.size();
+	}
+
+	/**
+	 * Build the domain sizes.
+	 * 
+	 * @return True iff the CPT of each variable and the CPTs of its children agree on its domain size
+	 */
+	private boolean areDomainSizesConsistent() {
+		Map<String, Integer> sizes = new HashMap<String, Integer>();
+		for (CWT<V> cpt: cpts) {
+			sizes.put(cpt.var, cpt.getDomainSize(cpt.var));
+		}
+		for (CWT<V> cpt: cpts) {
+			for (String parent: cpt.parents) {
+				if (cpt.getDomainSize(parent) != sizes.get(parent)) return false;
+			}
+		}
+		domainSizes = Collections.unmodifiableMap(sizes);
 		return true;
 	}
 
 	public Set<String> getVariables() {
-		return cpts.stream()
-				.map(cpt -> cpt.var)
-				.collect(Collectors.toSet());
+		return Collections.unmodifiableSet(cptIndex.keySet());
+	}
+
+	/**
+	 * @return Number of values of the given variable
+	 */
+	public int getDomainSize(String var) {
+		Integer size = domainSizes.get(var);
+		if (size == null) throw new IllegalArgumentException("Illegal variable");
+		return size;
 	}
 
 	/**
-	 * @return The conditional probability tables of this BN
+	 * @return Number of values of each variable
+	 */
+	public Map<String, Integer> getDomainSizes() {
+		return domainSizes;
+	}
+
+	/**
+	 * Check that the given configuration assigns the variables of this BN
+	 * only values within their domains (other variables are not checked).
+	 * 
+	 * @throws IllegalArgumentException If a value is out of range
+	 */
+	public void checkValues(Configuration config) {
+		for (String var: config.getVariables()) {
+			Integer size = domainSizes.get(var);
+			if (size != null && config.getIntValue(var) >= size) {
+				throw new IllegalArgumentException("Value " + config.getIntValue(var) + " out of range for variable " + var + " with " + size + " values");
+			}
+		}
+	}
+
+	/**
+	 * @return True iff all variables of this BN are binary
+	 */
+	public boolean isBinary() {
+		for (int size: domainSizes.values()) {
+			if (size != 2) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return Variables of this BN, parents before children
+	 */
+	public List<String> getTopologicalOrder() {
+		return topologicalOrder;
+	}
+
+	/**
+	 * @return The conditional probability tables of this BN (unmodifiable)
 	 */
 	public List<CWT<V>> getCPTs() {
 		return cpts;
@@ -109,10 +230,9 @@ public class Network<V> implements AbstractDistribution<V> {
 	 * @return Conditional probability table for given variable
 	 */
 	public CWT<V> getCPT(String var) {
-		for (CWT<V> cpt: cpts) {
-			if (cpt.var.equals(var)) return cpt;
-		}
-		throw new IllegalArgumentException("Illegal variable");
+		CWT<V> cpt = cptIndex.get(var);
+		if (cpt == null) throw new IllegalArgumentException("Illegal variable");
+		return cpt;
 	}
 
 	/**
@@ -131,10 +251,9 @@ public class Network<V> implements AbstractDistribution<V> {
 	 * @return Children of variable
 	 */
 	public List<String> getChildren(String var) {
-		return cpts.stream()
-				.filter(cpt -> cpt.parents.contains(var))
-				.map(cpt -> cpt.var)
-				.collect(Collectors.toList());
+		List<String> c = children.get(var);
+		if (c == null) throw new IllegalArgumentException("Illegal variable");
+		return Collections.unmodifiableList(c);
 	}
 	
 	/**
@@ -144,58 +263,48 @@ public class Network<V> implements AbstractDistribution<V> {
 	 * @return Descendants variables of variable 
 	 */
 	public List<String> getDescendants(String var) {
-		List<String> children = getChildren(var);
-		List<String> descendants = new ArrayList<String>();
-		for (String child: children) {
-			descendants.add(child);
-		}
-		for (String child: children) {
-			descendants.addAll(getDescendants(child));
-		}
-		return descendants;
-	}
-	
-	/**
-	 * Returns true if d is a descendant of n.
-	 * 
-	 * @param d A variable that is part of this BN
-	 * @param n A variable that is part of this BN
-	 * @return true iff d is descendant of n.
-	 */
-	private boolean isDescendant(String d, String n) {
-		for (String child: getChildren(n)) {
-			if (d.equals(child) || isDescendant(d, child)) return true;
+		Set<String> descendants = new LinkedHashSet<String>(getChildren(var));
+		List<String> queue = new ArrayList<String>(descendants);
+		for (int i = 0; i < queue.size(); i++) {
+			for (String child: children.get(queue.get(i))) {
+				if (descendants.add(child)) queue.add(child);
+			}
 		}
-		return false;
+		return queue;
 	}
 
 	/**
 	 * Return ancestors of variable (parents, parents of parents, etc.). 
 	 * 
 	 * @param var A variable that is part of this BN
-	 * @return Ancestors variables of variable 
+	 * @return Ancestors variables of variable, parents before children
 	 */
 	public Set<String> getAncestors(String var) {
-		Set<String> ancestors = new LinkedHashSet<String>();
-		for (String parent: getParents(var)) {
-			ancestors.addAll(getAncestors(parent));
-		}
-		for (String parent: getParents(var)) {
-			ancestors.add(parent);
-		}
-		return ancestors;
+		return getAncestors(Collections.singleton(var));
 	}
 
 	/**
 	 * Return ancestors of given set of variables (parents, parents of parents, etc.). 
 	 * 
 	 * @param var A set of variables that are part of this BN
-	 * @return Ancestors of variables 
+	 * @return Ancestors of variables, parents before children 
 	 */
 	public Set<String> getAncestors(Collection<String> vars) {
-		Set<String> ancestors = new LinkedHashSet<String>();
+		Set<String> visited = new HashSet<String>();
+		List<String> queue = new ArrayList<String>();
 		for (String var: vars) {
-			ancestors.addAll(getAncestors(var));
+			for (String parent: getCPT(var).parents) {
+				if (visited.add(parent)) queue.add(parent);
+			}
+		}
+		for (int i = 0; i < queue.size(); i++) {
+			for (String parent: cptIndex.get(queue.get(i)).parents) {
+				if (visited.add(parent)) queue.add(parent);
+			}
+		}
+		Set<String> ancestors = new LinkedHashSet<String>();
+		for (String v: topologicalOrder) {
+			if (visited.contains(v)) ancestors.add(v);
 		}
 		return ancestors;
 	}
@@ -258,32 +367,189 @@ public class Network<V> implements AbstractDistribution<V> {
 	 * must contain all variables that are part of this BN, and no more.
 	 *  
 	 * @param config A configuration for this BN.
+	 * @param tables Dense copies of the CPTs of this BN.
 	 * @return Probability of configuration.
 	 */
-	private V getProbabilityOfFullConfig(Configuration config) {
-		if (!getVariables().equals(config.getVariables())) {
-			throw new IllegalArgumentException("Illegal variable set");
+	private V getProbabilityOfFullConfig(Configuration config, List<DenseCWT<V>> tables) {
+		DoubleSemiRing<V> dsr = DoubleSemiRing.of(semiRing);
+		if (dsr != null) {
+			double p = dsr.oneDouble();
+			for (DenseCWT<V> t: tables) {
+				p = dsr.productDouble(p, t.getDoubleWeight(config.getIntValue(t.getVariable()), t.parentIndex(config)));
+			}
+			return dsr.fromDouble(p);
+		}
+		IntSemiRing<V> isr = IntSemiRing.of(semiRing);
+		if (isr != null) {
+			int p = isr.oneInt();
+			for (DenseCWT<V> t: tables) {
+				p = isr.productInt(p, t.getIntWeight(config.getIntValue(t.getVariable()), t.parentIndex(config)));
+			}
+			return isr.fromInt(p);
 		}
 		V p = semiRing.one();
-		for (CWT<V> cpt: cpts) {
-			p = semiRing.product(p, cpt.getWeight(config.getValue(cpt.getVariable()), config.restrict(cpt.getParents())));
+		for (DenseCWT<V> t: tables) {
+			p = semiRing.product(p, t.getWeight(config));
 		}
 		return p;
 	}
 
+	/**
+	 * @return Dense copies of the CPTs of this BN
+	 */
+	private List<DenseCWT<V>> getDenseCPTs() {
+		return cpts.stream()
+				.map(cpt -> cpt.toDense())
+				.collect(Collectors.toList());
+	}
+
 	public V getWeight(Configuration config) {
-		return getWeight(Collections.singleton(config));
+		return new VariableElimination<V>(this).getWeight(config);
+	}
+
+	/**
+	 * @return A most probable explanation of the given evidence
+	 * @see VariableElimination#getMostProbableExplanation(Configuration)
+	 */
+	public Configuration getMostProbableExplanation(Configuration evidence) {
+		return new VariableElimination<V>(this).getMostProbableExplanation(evidence);
+	}
+
+	/**
+	 * @return Junction tree compiled from this network, for answering many marginal queries
+	 */
+	public JunctionTree<V> compileJunctionTree() {
+		return new JunctionTree<V>(this);
 	}
 	
+	/**
+	 * @return Joint weights of all total configurations of this BN
+	 */
 	public Distribution<V> getCompleteDistribution() {
-		Distribution<V> dist = new Distribution<V>(semiRing, cpts.stream().map(cpt -> cpt.var).collect(Collectors.toSet()));
-		for (Configuration c: BaseTools.generateAllTotalConfigs(dist.getVariables())) {
-			dist.set(c, getProbabilityOfFullConfig(c));
+		if (isBinary()) {
+			return getDenseDistribution().toDistribution();
+		}
+		Distribution<V> dist = new Distribution<V>(semiRing, new LinkedHashSet<String>(getTopologicalOrder()));
+		List<DenseCWT<V>> tables = getDenseCPTs();
+		for (Configuration c: BaseTools.iterateAllTotalConfigs(getTopologicalOrder(), domainSizes)) {
+			dist.set(c.copy(), getProbabilityOfFullConfig(c, tables));
+		}
+		return dist;
+	}
+
+	/**
+	 * Return the joint weights of all total configurations of this BN.
+	 * 
+	 * The configurations are split into ranges of consecutive indices,
+	 * which are computed in parallel directly into the primitive array
+	 * of the result.
+	 * 
+	 * @return Joint distribution over the variables of this BN, in topological order
+	 * @throws IllegalStateException If some variable is not binary
+	 */
+	public DenseDistribution<V> getDenseDistribution() {
+		if (!isBinary()) {
+			throw new IllegalStateException("Dense distributions need binary variables");
 		}
+		DenseDistribution<V> dist = new DenseDistribution<V>(semiRing, getTopologicalOrder());
+		List<DenseCWT<V>> tables = getDenseCPTs();
+
+		// Bit of each table's variable and parents in the index of the distribution
+		int[] varBits = new int[tables.size()];
+		int[][] parentBits = new int[tables.size()][];
+		for (int t = 0; t < tables.size(); t++) {
+			DenseCWT<V> table = tables.get(t);
+			varBits[t] = 1 << topologicalOrder.indexOf(table.getVariable());
+			parentBits[t] = new int[table.getParents().size()];
+			for (int k = 0; k < parentBits[t].length; k++) {
+				parentBits[t][k] = 1 << topologicalOrder.indexOf(table.getParents().get(k));
+			}
+		}
+
+		// Resolve the primitive specialization (as chosen by the distribution) once
+		DoubleSemiRing<V> dsr = DoubleSemiRing.of(semiRing);
+		IntSemiRing<V> isr = dsr == null? IntSemiRing.of(semiRing): null;
+		IntConsumer filler;
+		if (dsr != null) {
+			filler = i -> setJointDouble(dist, i, dsr, tables, varBits, parentBits);
+		} else if (isr != null) {
+			filler = i -> setJointInt(dist, i, isr, tables, varBits, parentBits);
+		} else {
+			filler = i -> setJointWeight(dist, i, tables, varBits, parentBits);
+		}
+
+		int ranges = (dist.size() + RANGE_SIZE - 1) / RANGE_SIZE;
+		IntStream.range(0, ranges).parallel().forEach(r -> {
+			int to = Math.min(dist.size(), (r + 1) * RANGE_SIZE);
+			for (int i = r * RANGE_SIZE; i < to; i++) {
+				filler.accept(i);
+			}
+		});
 		return dist;
 	}
+
+	/**
+	 * Store the joint weight of the configuration with the given index in the distribution.
+	 */
+	private void setJointWeight(DenseDistribution<V> dist, int i, List<DenseCWT<V>> tables, int[] varBits, int[][] parentBits) {
+		V p = semiRing.one();
+		for (int t = 0; t < varBits.length; t++) {
+			p = semiRing.product(p, tables.get(t).getWeight((i & varBits[t]) != 0, parentIndex(i, parentBits[t])));
+		}
+		dist.set(i, p);
+	}
+
+	/**
+	 * Unboxed {@link #setJointWeight}, for BNs over a DoubleSemiRing.
+	 */
+	private static <V> void setJointDouble(DenseDistribution<V> dist, int i, DoubleSemiRing<V> sr, List<DenseCWT<V>> tables, int[] varBits, int[][] parentBits) {
+		double p = sr.oneDouble();
+		for (int t = 0; t < varBits.length; t++) {
+			p = sr.productDouble(p, tables.get(t).getDoubleWeight((i & varBits[t]) != 0, parentIndex(i, parentBits[t])));
+		}
+		dist.setDouble(i, p);
+	}
+
+	/**
+	 * Unboxed {@link #setJointWeight}, for BNs over an IntSemiRing.
+	 */
+	private static <V> void setJointInt(DenseDistribution<V> dist, int i, IntSemiRing<V> sr, List<DenseCWT<V>> tables, int[] varBits, int[][] parentBits) {
+		int p = sr.oneInt();
+		for (int t = 0; t < varBits.length; t++) {
+			p = sr.productInt(p, tables.get(t).getIntWeight((i & varBits[t]) != 0, parentIndex(i, parentBits[t])));
+		}
+		dist.setInt(i, p);
+	}
+
+	/**
+	 * @return Parent index of a CWT, given the bits of its parents in the given index
+	 */
+	private static int parentIndex(int index, int[] parentBits) {
+		int p = 0;
+		for (int k = 0; k < parentBits.length; k++) {
+			if ((index & parentBits[k]) != 0) p |= 1 << k;
+		}
+		return p;
+	}
 	
 	public V getWeight(Collection<Configuration> configs) {
+		// Distinct configurations over the same variables are mutually exclusive,
+		// so their weights can be computed separately by variable elimination
+		Set<Configuration> distinct = new LinkedHashSet<Configuration>(configs);
+		Set<Set<String>> variableSets = new HashSet<Set<String>>();
+		for (Configuration c: distinct) {
+			checkValues(c);
+			variableSets.add(c.getVariables());
+		}
+		if (variableSets.size() <= 1) {
+			VariableElimination<V> ve = new VariableElimination<V>(this);
+			V p = semiRing.zero();
+			for (Configuration c: distinct) {
+				p = semiRing.sum(p, ve.getWeight(c));
+			}
+			return p;
+		}
+
 		// Extract relevant variables
 		Set<String> variables = new LinkedHashSet<String>();
 		for (Configuration c: configs) {
@@ -294,8 +560,9 @@ public class Network<V> implements AbstractDistribution<V> {
 		Network<V> relevantBN = restrict(variables);
 		
 		// Sum over all configurations of relevant BN
+		List<DenseCWT<V>> tables = relevantBN.getDenseCPTs();
 		V p = semiRing.zero();
-		for (Configuration c: BaseTools.generateAllTotalConfigs(relevantBN.getVariables())) {
+		for (Configuration c: BaseTools.iterateAllTotalConfigs(relevantBN.getVariables(), relevantBN.getDomainSizes())) {
 
 			// Check if some configuration of interest is consistent with it
 			boolean consistent = false;
@@ -308,7 +575,7 @@ public class Network<V> implements AbstractDistribution<V> {
 			
 			// If so, get its probability and add to sum
 			if (consistent) {
-				p = semiRing.sum(p, relevantBN.getProbabilityOfFullConfig(c));
+				p = semiRing.sum(p, relevantBN.getProbabilityOfFullConfig(c, tables));
 			}
 		}
 
@@ -0,0 +1,253 @@
+package com.tr.sptools.network;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.Distribution;
+import com.tr.sptools.semiring.MaxProductSemiRing;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * Variable elimination inference for a {@link Network}.
+ *
+ * The CWTs of the network are turned into factors, reduced by the evidence,
+ * and the remaining variables are summed out one at a time in an order
+ * chosen by a greedy heuristic. The cost is exponential in the size of the
+ * largest factor created, which is bounded by the treewidth of the network
+ * (for a good order) rather than by the number of variables.
+ *
+ * All operations use the semiring of the network, so the same engine
+ * answers probability queries for Bayesian networks and rank queries for
+ * ranking networks.
+ *
+ * @param <V> Value type for weights (e.g. double for probabilities)
+ */
+public class VariableElimination<V> {
+
+	/**
+	 * Greedy heuristics for choosing the elimination order
+	 */
+	public enum Heuristic {
+		/** Eliminate the variable whose elimination adds the fewest edges to the interaction graph */
+		MIN_FILL,
+		/** Eliminate the variable with the fewest neighbours in the interaction graph */
+		MIN_DEGREE
+	}
+
+	private final Network<V> network;
+
+	private final Heuristic heuristic;
+
+	public VariableElimination(Network<V> network) {
+		this(network, Heuristic.MIN_FILL);
+	}
+
+	public VariableElimination(Network<V> network, Heuristic heuristic) {
+		this.network = network;
+		this.heuristic = heuristic;
+	}
+
+	/**
+	 * Return weight of the given (partial) configuration, i.e. the sum of the
+	 * weights of all total configurations consistent with it.
+	 *
+	 * @param evidence A configuration of variables of the network
+	 * @return Weight of the configuration
+	 */
+	public V getWeight(Configuration evidence) {
+		network.checkValues(evidence);
+		Network<V> relevant = network.restrict(evidence.getVariables());
+		List<Factor<V>> factors = getFactors(relevant, evidence);
+		List<Factor<V>> res = eliminate(factors, relevant.getVariables());
+		return Factor.product(network.getSemiRing(), res).get(0);
+	}
+
+	/**
+	 * Return the joint weights of the values of a variable together with
+	 * the given evidence. For probabilities, normalizing the result gives
+	 * the posterior distribution of the variable.
+	 *
+	 * @param var A variable of the network, not assigned by the evidence
+	 * @param evidence A configuration of variables of the network
+	 * @return Distribution over the variable
+	 */
+	public Distribution<V> getMarginal(String var, Configuration evidence) {
+		if (evidence.hasVariable(var)) {
+			throw new IllegalArgumentException("Variable " + var + " is part of the evidence");
+		}
+		network.checkValues(evidence);
+		Set<String> vars = new LinkedHashSet<String>(evidence.getVariables());
+		vars.add(var);
+		Network<V> relevant = network.restrict(vars);
+		Set<String> eliminate = new LinkedHashSet<String>(relevant.getVariables());
+		eliminate.remove(var);
+		List<Factor<V>> res = eliminate(getFactors(relevant, evidence), eliminate);
+		Factor<V> f = Factor.product(network.getSemiRing(), res);
+		List<V> weights = new ArrayList<V>();
+		for (int value = 0; value < network.getDomainSize(var); value++) {
+			weights.add(f.getWeight(Configuration.singleton(var, value)));
+		}
+		return Distribution.singleton(network.getSemiRing(), var, weights);
+	}
+
+	/**
+	 * Return a most probable explanation of the given evidence: a total
+	 * configuration of the network that is consistent with the evidence and
+	 * has the best weight (highest probability, lowest rank).
+	 *
+	 * The variables are eliminated as for {@link #getWeight(Configuration)},
+	 * but using the selective sum of {@link MaxProductSemiRing#forSemiRing(SemiRing)}
+	 * and keeping the product of each bucket. The values are then chosen in
+	 * reverse elimination order: each bucket only depends on its variable
+	 * and on variables eliminated later, which are already chosen.
+	 *
+	 * @param evidence A configuration of variables of the network
+	 * @return The explanation, including the evidence
+	 * @throws IllegalArgumentException If the evidence has weight zero(), or assigns a value outside the domain of a variable
+	 */
+	public Configuration getMostProbableExplanation(Configuration evidence) {
+		network.checkValues(evidence);
+		SemiRing<V> selective = MaxProductSemiRing.forSemiRing(network.getSemiRing());
+		List<Factor<V>> pool = new ArrayList<Factor<V>>();
+		for (Factor<V> f: getFactors(network, evidence)) {
+			pool.add(f.withSemiRing(selective));
+		}
+		List<String> order = getEliminationOrder(pool, network.getVariables());
+		List<Factor<V>> buckets = new ArrayList<Factor<V>>();
+		for (String var: order) {
+			List<Factor<V>> bucket = new ArrayList<Factor<V>>();
+			List<Factor<V>> rest = new ArrayList<Factor<V>>();
+			for (Factor<V> f: pool) {
+				(f.getVariables().contains(var)? bucket: rest).add(f);
+			}
+			Factor<V> product = Factor.product(selective, bucket);
+			buckets.add(product);
+			rest.add(product.sumOut(Collections.singleton(var)));
+			pool = rest;
+		}
+		if (selective.zero().equals(Factor.product(selective, pool).get(0))) {
+			throw new IllegalArgumentException("Evidence " + evidence + " has weight " + selective.zero());
+		}
+
+		Configuration res = evidence.copy();
+		for (int k = order.size() - 1; k >= 0; k--) {
+			String var = order.get(k);
+			Factor<V> f = buckets.get(k);
+			int best = 0;
+			V w = f.getWeight(res.append(var, 0));
+			for (int value = 1; value < f.getDomainSize(var); value++) {
+				V v = f.getWeight(res.append(var, value));
+				if (!selective.sum(w, v).equals(w)) {
+					best = value;
+					w = v;
+				}
+			}
+			res.putValue(var, best);
+		}
+		return res;
+	}
+
+	/**
+	 * @return The factors of the given network, reduced by the evidence
+	 */
+	static <V> List<Factor<V>> getFactors(Network<V> network, Configuration evidence) {
+		List<Factor<V>> factors = new ArrayList<Factor<V>>();
+		for (CWT<V> cpt: network.getCPTs()) {
+			factors.add(Factor.fromCWT(cpt).reduce(evidence));
+		}
+		return factors;
+	}
+
+	/**
+	 * Sum out the given variables (those that occur in the factors) from
+	 * the product of the given factors.
+	 *
+	 * @return Remaining factors, whose product is the result
+	 */
+	List<Factor<V>> eliminate(List<Factor<V>> factors, Collection<String> vars) {
+		List<Factor<V>> pool = new ArrayList<Factor<V>>(factors);
+		for (String var: getEliminationOrder(pool, vars)) {
+			List<Factor<V>> bucket = new ArrayList<Factor<V>>();
+			List<Factor<V>> rest = new ArrayList<Factor<V>>();
+			for (Factor<V> f: pool) {
+				(f.getVariables().contains(var)? bucket: rest).add(f);
+			}
+			rest.add(Factor.product(network.getSemiRing(), bucket).sumOut(Collections.singleton(var)));
+			pool = rest;
+		}
+		return pool;
+	}
+
+	/**
+	 * Compute an elimination order for the given variables, using the
+	 * heuristic of this engine on the interaction graph of the factors.
+	 * Variables that do not occur in any factor are left out.
+	 *
+	 * @return Elimination order
+	 */
+	public List<String> getEliminationOrder(List<Factor<V>> factors, Collection<String> vars) {
+		// Interaction graph: variables are adjacent iff they share a factor
+		Map<String, Set<String>> graph = new HashMap<String, Set<String>>();
+		for (Factor<V> f: factors) {
+			for (String v: f.getVariables()) {
+				Set<String> adj = graph.get(v);
+				if (adj == null) {
+					adj = new TreeSet<String>();
+					graph.put(v, adj);
+				}
+				adj.addAll(f.getVariables());
+				adj.remove(v);
+			}
+		}
+
+		// Greedily pick the best variable, ties broken by name
+		Set<String> remaining = new TreeSet<String>(vars);
+		remaining.retainAll(graph.keySet());
+		List<String> order = new ArrayList<String>();
+		while (!remaining.isEmpty()) {
+			String best = null;
+			int bestScore = Integer.MAX_VALUE;
+			for (String v: remaining) {
+				int score = heuristic == Heuristic.MIN_FILL? fillIn(graph, v): graph.get(v).size();
+				if (score < bestScore) {
+					best = v;
+					bestScore = score;
+				}
+			}
+			Set<String> adj = graph.remove(best);
+			for (String a: adj) {
+				Set<String> n = graph.get(a);
+				n.remove(best);
+				n.addAll(adj);
+				n.remove(a);
+			}
+			remaining.remove(best);
+			order.add(best);
+		}
+		return order;
+	}
+
+	/**
+	 * @return Number of edges that eliminating the given variable adds to the graph
+	 */
+	private static int fillIn(Map<String, Set<String>> graph, String var) {
+		List<String> adj = new ArrayList<String>(graph.get(var));
+		int fill = 0;
+		for (int i = 0; i < adj.size(); i++) {
+			Set<String> n = graph.get(adj.get(i));
+			for (int j = i + 1; j < adj.size(); j++) {
+				if (!n.contains(adj.get(j))) fill++;
+			}
+		}
+		return fill;
+	}
+
+}
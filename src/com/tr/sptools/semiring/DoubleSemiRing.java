@@ -0,0 +1,39 @@
+package com.tr.sptools.semiring;
+
+/**
+ * Primitive specialization of a semiring whose values are doubles.
+ *
+ * Semirings implementing this interface can be used by evaluation code
+ * without boxing intermediate values.
+ *
+ * @param <V> Value type of the semiring
+ */
+public interface DoubleSemiRing<V> {
+
+	public double sumDouble(double v1, double v2);
+
+	public double productDouble(double v1, double v2);
+
+	public double zeroDouble();
+
+	public double oneDouble();
+
+	/**
+	 * @return Unboxed value of given semiring value
+	 */
+	public double toDouble(V v);
+
+	/**
+	 * @return Semiring value of given unboxed value
+	 */
+	public V fromDouble(double v);
+
+	/**
+	 * @return The given semiring as a DoubleSemiRing, or null if it is not one
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> DoubleSemiRing<V> of(SemiRing<V> semiRing) {
+		return semiRing instanceof DoubleSemiRing<?>? (DoubleSemiRing<V>)semiRing: null;
+	}
+
+}
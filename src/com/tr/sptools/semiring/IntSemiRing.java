@@ -0,0 +1,39 @@
+package com.tr.sptools.semiring;
+
+/**
+ * Primitive specialization of a semiring whose values are ints.
+ *
+ * Semirings implementing this interface can be used by evaluation code
+ * without boxing intermediate values.
+ *
+ * @param <V> Value type of the semiring
+ */
+public interface IntSemiRing<V> {
+
+	public int sumInt(int v1, int v2);
+
+	public int productInt(int v1, int v2);
+
+	public int zeroInt();
+
+	public int oneInt();
+
+	/**
+	 * @return Unboxed value of given semiring value
+	 */
+	public int toInt(V v);
+
+	/**
+	 * @return Semiring value of given unboxed value
+	 */
+	public V fromInt(int v);
+
+	/**
+	 * @return The given semiring as an IntSemiRing, or null if it is not one
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> IntSemiRing<V> of(SemiRing<V> semiRing) {
+		return semiRing instanceof IntSemiRing<?>? (IntSemiRing<V>)semiRing: null;
+	}
+
+}
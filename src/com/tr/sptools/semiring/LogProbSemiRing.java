@@ -0,0 +1,90 @@
+package com.tr.sptools.semiring;
+
+/**
+ * Semiring for log probabilities: (-infinity, 0, log-sum-exp, +)
+ *
+ * Values are natural logarithms of probabilities, so products of many
+ * small probabilities do not underflow.
+ */
+public class LogProbSemiRing extends SemiRing<Double> implements DoubleSemiRing<Double> {
+
+	private static final LogProbSemiRing instance = new LogProbSemiRing();
+
+	public static LogProbSemiRing getInstance() {
+		return instance;
+	}
+
+	@Override
+	public Double sum(Double v1, Double v2) {
+		return sumDouble(v1, v2);
+	}
+
+	@Override
+	public Double product(Double v1, Double v2) {
+		return productDouble(v1, v2);
+	}
+
+	@Override
+	public Double zero() {
+		return Double.NEGATIVE_INFINITY;
+	}
+
+	@Override
+	public Double one() {
+		return 0.0;
+	}
+
+	@Override
+	public double sumDouble(double v1, double v2) {
+		// log(e^v1 + e^v2), computed relative to the larger value
+		if (v1 < v2) {
+			double t = v1;
+			v1 = v2;
+			v2 = t;
+		}
+		if (v2 == Double.NEGATIVE_INFINITY) {
+			return v1;
+		}
+		return v1 + Math.log1p(Math.exp(v2 - v1));
+	}
+
+	@Override
+	public double productDouble(double v1, double v2) {
+		return v1 + v2;
+	}
+
+	@Override
+	public double zeroDouble() {
+		return Double.NEGATIVE_INFINITY;
+	}
+
+	@Override
+	public double oneDouble() {
+		return 0.0;
+	}
+
+	@Override
+	public double toDouble(Double v) {
+		return v;
+	}
+
+	@Override
+	public Double fromDouble(double v) {
+		return v;
+	}
+
+	/**
+	 * @return Log of given probability
+	 */
+	public static double fromProbability(double p) {
+		return Math.log(p);
+	}
+
+	/**
+	 * @return Probability of given log probability
+	 */
+	public static double toProbability(double v) {
+		return Math.exp(v);
+	}
+
+}
@@ -0,0 +1,110 @@
+package com.tr.sptools.semiring;
+
+/**
+ * Semiring for most probable explanations: (0, 1, max, *) for
+ * probabilities, or (-infinity, 0, max, +) for log probabilities.
+ *
+ * Its sum is selective (it returns one of its arguments), so the weight of
+ * a set of configurations is the weight of its best member, and the best
+ * member can be recovered by following the arguments that were chosen.
+ * {@link RankSemiRing} is selective as well, with min in place of max.
+ */
+public class MaxProductSemiRing extends SemiRing<Double> implements DoubleSemiRing<Double> {
+
+	private static final MaxProductSemiRing instance = new MaxProductSemiRing(false);
+
+	private static final MaxProductSemiRing logInstance = new MaxProductSemiRing(true);
+
+	/** True iff values are log probabilities */
+	private final boolean log;
+
+	private MaxProductSemiRing(boolean log) {
+		this.log = log;
+	}
+
+	/**
+	 * @return Max-product semiring for probabilities
+	 */
+	public static MaxProductSemiRing getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @return Max-sum semiring for log probabilities
+	 */
+	public static MaxProductSemiRing getLogInstance() {
+		return logInstance;
+	}
+
+	/**
+	 * Return the selective counterpart of the given semiring, which has the
+	 * same values, product, zero and one, but picks the best of two values
+	 * as their sum.
+	 *
+	 * @throws IllegalArgumentException If there is no such semiring
+	 */
+	@SuppressWarnings("unchecked")
+	public static <V> SemiRing<V> forSemiRing(SemiRing<V> semiRing) {
+		if (semiRing instanceof MaxProductSemiRing || semiRing instanceof RankSemiRing) {
+			return semiRing;
+		}
+		if (semiRing instanceof ProbSemiRing) {
+			return (SemiRing<V>)instance;
+		}
+		if (semiRing instanceof LogProbSemiRing) {
+			return (SemiRing<V>)logInstance;
+		}
+		throw new IllegalArgumentException("No max-product semiring for " + semiRing.getClass().getName());
+	}
+
+	@Override
+	public Double sum(Double v1, Double v2) {
+		return sumDouble(v1, v2);
+	}
+
+	@Override
+	public Double product(Double v1, Double v2) {
+		return productDouble(v1, v2);
+	}
+
+	@Override
+	public Double zero() {
+		return zeroDouble();
+	}
+
+	@Override
+	public Double one() {
+		return oneDouble();
+	}
+
+	@Override
+	public double sumDouble(double v1, double v2) {
+		return Math.max(v1, v2);
+	}
+
+	@Override
+	public double productDouble(double v1, double v2) {
+		return log? v1 + v2: v1 * v2;
+	}
+
+	@Override
+	public double zeroDouble() {
+		return log? Double.NEGATIVE_INFINITY: 0.0;
+	}
+
+	@Override
+	public double oneDouble() {
+		return log? 0.0: 1.0;
+	}
+
+	@Override
+	public double toDouble(Double v) {
+		return v;
+	}
+
+	@Override
+	public Double fromDouble(double v) {
+		return v;
+	}
+
+}
@@ -3,7 +3,7 @@ package com.tr.sptools.semiring;
 /**
  * Semiring for probabilities: (0, 1, +, *)
  */
-public class ProbSemiRing extends SemiRing<Double> {
+public class ProbSemiRing extends SemiRing<Double> implements DoubleSemiRing<Double> {
 
 	private static final ProbSemiRing instance = new ProbSemiRing();
 	
@@ -30,5 +30,35 @@ public class ProbSemiRing extends SemiRing<Double> {
 	public Double one() {
 		return 1.0;
 	}
+
+	@Override
+	public double sumDouble(double v1, double v2) {
+		return v1 + v2;
+	}
+
+	@Override
+	public double productDouble(double v1, double v2) {
+		return v1 * v2;
+	}
+
+	@Override
+	public double zeroDouble() {
+		return 0.0;
+	}
+
+	@Override
+	public double oneDouble() {
+		return 1.0;
+	}
+
+	@Override
+	public double toDouble(Double v) {
+		return v;
+	}
+
+	@Override
+	public Double fromDouble(double v) {
+		return v;
+	}
 	
 }
@@ -3,7 +3,7 @@ package com.tr.sptools.semiring;
 /**
  * Semiring for ranks: (infinity, 0, min, +)
  */
-public class RankSemiRing extends SemiRing<Integer> {
+public class RankSemiRing extends SemiRing<Integer> implements IntSemiRing<Integer> {
 	
 	private static final RankSemiRing instance = new RankSemiRing();
 	
@@ -13,16 +13,12 @@ public class RankSemiRing extends SemiRing<Integer> {
 	
 	@Override
 	public Integer sum(Integer v1, Integer v2) {
-		return Math.min(v1, v2);
+		return sumInt(v1, v2);
 	}
 
 	@Override
 	public Integer product(Integer v1, Integer v2) {
-		try {
-			return Math.addExact(v1, v2);
-		} catch (ArithmeticException ex) {
-			return Integer.MAX_VALUE;
-		}
+		return productInt(v1, v2);
 	}
 
 	@Override
@@ -34,5 +30,40 @@ public class RankSemiRing extends SemiRing<Integer> {
 	public Integer one() {
 		return 0;
 	}
+
+	@Override
+	public int sumInt(int v1, int v2) {
+		return Math.min(v1, v2);
+	}
+
+	@Override
+	public int productInt(int v1, int v2) {
+		// Same as Math.addExact, but saturating to infinity without throwing
+		int r = v1 + v2;
+		if (((v1 ^ r) & (v2 ^ r)) < 0) {
+			return Integer.MAX_VALUE;
+		}
+		return r;
+	}
+
+	@Override
+	public int zeroInt() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public int oneInt() {
+		return 0;
+	}
+
+	@Override
+	public int toInt(Integer v) {
+		return v;
+	}
+
+	@Override
+	public Integer fromInt(int v) {
+		return v;
+	}
 	
 }
@@ -1,20 +1,47 @@
 package com.tr.sptools.semiring;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+
+/**
+ * Exact rational number.
+ *
+ * Numerator and denominator are kept reduced, with a positive denominator.
+ * They are stored as longs while both have magnitude below 2^62, and as
+ * BigIntegers otherwise. Arithmetic on the long form uses a binary gcd and
+ * bit length checks, and only moves to BigInteger when a result would
+ * overflow. Since the form is canonical, equal numbers have equal fields.
+ */
 public class RationalNumber implements Comparable<RationalNumber> {
-    private static RationalNumber zero = new RationalNumber(0, 1);
 
-    private int num;   // the numerator
-    private int den;   // the denominator
+    public static final RationalNumber ZERO = new RationalNumber(0, 1);
+    public static final RationalNumber ONE = new RationalNumber(1, 1);
+
+    private long num;          // the numerator (long form)
+    private long den;          // the denominator (long form)
+    private BigInteger bigNum; // the numerator (BigInteger form, null for long form)
+    private BigInteger bigDen; // the denominator (BigInteger form, null for long form)
+
+    private RationalNumber() {
+    }
 
     // create and initialize a new Rational object
     public RationalNumber(int numerator, int denominator) {
+        this((long) numerator, (long) denominator);
+    }
 
+    public RationalNumber(long numerator, long denominator) {
         if (denominator == 0) {
             throw new ArithmeticException("denominator is zero");
         }
+        if (!isSmall(numerator) || !isSmall(denominator)) {
+            setBig(BigInteger.valueOf(numerator), BigInteger.valueOf(denominator));
+            return;
+        }
 
         // reduce fraction
-        int g = gcd(numerator, denominator);
+        long g = gcd(Math.abs(numerator), Math.abs(denominator));
         num = numerator   / g;
         den = denominator / g;
 
@@ -22,74 +49,147 @@ public class RationalNumber implements Comparable<RationalNumber> {
         if (den < 0) { den = -den; num = -num; }
     }
 
+    public RationalNumber(BigInteger numerator, BigInteger denominator) {
+        if (denominator.signum() == 0) {
+            throw new ArithmeticException("denominator is zero");
+        }
+        setBig(numerator, denominator);
+    }
+
+    // reduce n / d and store it in canonical form
+    private void setBig(BigInteger n, BigInteger d) {
+        BigInteger g = n.gcd(d);
+        if (!g.equals(BigInteger.ONE)) {
+            n = n.divide(g);
+            d = d.divide(g);
+        }
+        if (d.signum() < 0) { d = d.negate(); n = n.negate(); }
+        if (n.bitLength() <= 62 && d.bitLength() <= 62) {
+            num = n.longValue();
+            den = d.longValue();
+        } else {
+            bigNum = n;
+            bigDen = d;
+        }
+    }
+
+    // create n / d, which must be reduced with d > 0 and both in the long range
+    private static RationalNumber small(long n, long d) {
+        RationalNumber r = new RationalNumber();
+        r.num = n;
+        r.den = d;
+        return r;
+    }
+
+    // create n / d in canonical form
+    private static RationalNumber big(BigInteger n, BigInteger d) {
+        RationalNumber r = new RationalNumber();
+        r.setBig(n, d);
+        return r;
+    }
+
+    // true iff x has magnitude below 2^62 (bit length at most 62)
+    private static boolean isSmall(long x) {
+        return x >= -(1L << 62) && x < (1L << 62);
+    }
+
+    // number of bits of |x|
+    private static int bits(long x) {
+        return 64 - Long.numberOfLeadingZeros(Math.abs(x));
+    }
+
+    private boolean isBig() {
+        return bigNum != null;
+    }
+
     // return the numerator and denominator of (this)
-    public int numerator()   { return num; }
-    public int denominator() { return den; }
+    public BigInteger getNumerator()   { return isBig() ? bigNum : BigInteger.valueOf(num); }
+    public BigInteger getDenominator() { return isBig() ? bigDen : BigInteger.valueOf(den); }
+
+    // return the numerator and denominator of (this), if they fit in an int
+    public int numerator()   { return getNumerator().intValueExact(); }
+    public int denominator() { return getDenominator().intValueExact(); }
 
     // return double precision representation of (this)
     public double toDouble() {
-        return (double) num / den;
+        if (!isBig()) return (double) num / den;
+        return new BigDecimal(bigNum).divide(new BigDecimal(bigDen), MathContext.DECIMAL64).doubleValue();
     }
 
     // return string representation of (this)
-    public String toString() { 
-        if (den == 1) return num + "";
-        else          return num + "/" + den;
+    public String toString() {
+        if (getDenominator().equals(BigInteger.ONE)) return getNumerator() + "";
+        else                                         return getNumerator() + "/" + getDenominator();
     }
 
     // return { -1, 0, +1 } if a < b, a = b, or a > b
     public int compareTo(RationalNumber b) {
         RationalNumber a = this;
-        int lhs = a.num * b.den;
-        int rhs = a.den * b.num;
-        if (lhs < rhs) return -1;
-        if (lhs > rhs) return +1;
-        return 0;
+        if (!a.isBig() && !b.isBig() && bits(a.num) + bits(b.den) <= 62 && bits(b.num) + bits(a.den) <= 62) {
+            return Long.compare(a.num * b.den, b.num * a.den);
+        }
+        return a.getNumerator().multiply(b.getDenominator()).compareTo(b.getNumerator().multiply(a.getDenominator()));
     }
 
     // is this Rational object equal to y?
     public boolean equals(Object y) {
+        if (y == this) return true;
         if (y == null) return false;
         if (y.getClass() != this.getClass()) return false;
         RationalNumber b = (RationalNumber) y;
-        return compareTo(b) == 0;
+        if (isBig()) return b.isBig() && bigNum.equals(b.bigNum) && bigDen.equals(b.bigDen);
+        return !b.isBig() && num == b.num && den == b.den;
     }
 
-    // hashCode consistent with equals() and compareTo()
-    // (better to hash the numerator and denominator and combine)
+    // hashCode consistent with equals() and compareTo(), using the canonical form
     public int hashCode() {
-        return this.toString().hashCode();
+        if (isBig()) return 31 * bigNum.hashCode() + bigDen.hashCode();
+        return 31 * Long.hashCode(num) + Long.hashCode(den);
     }
 
 
     // create and return a new rational (r.num + s.num) / (r.den + s.den)
     public static RationalNumber mediant(RationalNumber r, RationalNumber s) {
-        return new RationalNumber(r.num + s.num, r.den + s.den);
+        return new RationalNumber(r.getNumerator().add(s.getNumerator()), r.getDenominator().add(s.getDenominator()));
     }
 
-    // return gcd(|m|, |n|)
-    private static int gcd(int m, int n) {
-        if (m < 0) m = -m;
-        if (n < 0) n = -n;
-        if (0 == n) return m;
-        else return gcd(n, m % n);
+    // return gcd(m, n) for m, n >= 0 (binary gcd)
+    private static long gcd(long m, long n) {
+        if (m == 0) return n;
+        if (n == 0) return m;
+        int shift = Long.numberOfTrailingZeros(m | n);
+        m >>= Long.numberOfTrailingZeros(m);
+        do {
+            n >>= Long.numberOfTrailingZeros(n);
+            if (m > n) { long t = n; n = m; m = t; }
+            n -= m;
+        } while (n != 0);
+        return m << shift;
     }
 
-    // return lcm(|m|, |n|)
-    private static int lcm(int m, int n) {
-        if (m < 0) m = -m;
-        if (n < 0) n = -n;
-        return m * (n / gcd(m, n));    // parentheses important to avoid overflow
-    }
-
-    // return a * b, staving off overflow as much as possible by cross-cancellation
+    // return a * b, staving off overflow by cross-cancellation
     public RationalNumber times(RationalNumber b) {
         RationalNumber a = this;
 
-        // reduce p1/q2 and p2/q1, then multiply, where a = p1/q1 and b = p2/q2
-        RationalNumber c = new RationalNumber(a.num, b.den);
-        RationalNumber d = new RationalNumber(b.num, a.den);
-        return new RationalNumber(c.num * d.num, c.den * d.den);
+        // special cases
+        if (a == ZERO || b == ONE) return a;
+        if (b == ZERO || a == ONE) return b;
+
+        if (!a.isBig() && !b.isBig()) {
+            if (a.num == 0 || b.num == 0) return ZERO;
+
+            // reduce p1/q2 and p2/q1, then multiply, where a = p1/q1 and b = p2/q2
+            long g1 = gcd(Math.abs(a.num), b.den);
+            long g2 = gcd(Math.abs(b.num), a.den);
+            long n1 = a.num / g1, d2 = b.den / g1;
+            long n2 = b.num / g2, d1 = a.den / g2;
+            if (bits(n1) + bits(n2) <= 62 && bits(d1) + bits(d2) <= 62) {
+                return small(n1 * n2, d1 * d2);
+            }
+            return big(BigInteger.valueOf(n1).multiply(BigInteger.valueOf(n2)),
+                       BigInteger.valueOf(d1).multiply(BigInteger.valueOf(d2)));
+        }
+        return big(a.getNumerator().multiply(b.getNumerator()), a.getDenominator().multiply(b.getDenominator()));
     }
 
 
@@ -98,30 +198,38 @@ public class RationalNumber implements Comparable<RationalNumber> {
         RationalNumber a = this;
 
         // special cases
-        if (a.compareTo(zero) == 0) return b;
-        if (b.compareTo(zero) == 0) return a;
-
-        // Find gcd of numerators and denominators
-        int f = gcd(a.num, b.num);
-        int g = gcd(a.den, b.den);
-
-        // add cross-product terms for numerator
-        RationalNumber s = new RationalNumber((a.num / f) * (b.den / g) + (b.num / f) * (a.den / g),
-                                  lcm(a.den, b.den));
-
-        // multiply back in
-        s.num *= f;
-        return s;
+        if (b == ZERO) return a;
+        if (a == ZERO) return b;
+
+        if (!a.isBig() && !b.isBig()) {
+            if (a.num == 0) return b;
+            if (b.num == 0) return a;
+
+            // a.num / a.den + b.num / b.den over the denominator lcm(a.den, b.den)
+            long g = gcd(a.den, b.den);
+            long fa = b.den / g;
+            long fb = a.den / g;
+            if (bits(a.num) + bits(fa) <= 61 && bits(b.num) + bits(fb) <= 61 && bits(fb) + bits(b.den) <= 62) {
+                long n = a.num * fa + b.num * fb;
+                long d = fb * b.den;
+                long h = gcd(Math.abs(n), g);
+                return n == 0 ? ZERO : small(n / h, d / h);
+            }
+        }
+        BigInteger ad = a.getDenominator();
+        BigInteger bd = b.getDenominator();
+        return big(a.getNumerator().multiply(bd).add(b.getNumerator().multiply(ad)), ad.multiply(bd));
     }
 
     // return -a
     public RationalNumber negate() {
-        return new RationalNumber(-num, den);
+        if (isBig() || !isSmall(-num)) return big(getNumerator().negate(), getDenominator());
+        return small(-num, den);
     }
 
     // return |a|
     public RationalNumber abs() {
-        if (num >= 0) return this;
+        if (getNumerator().signum() >= 0) return this;
         else return negate();
     }
 
@@ -132,7 +240,7 @@ public class RationalNumber implements Comparable<RationalNumber> {
     }
 
 
-    public RationalNumber reciprocal() { return new RationalNumber(den, num);  }
+    public RationalNumber reciprocal() { return new RationalNumber(getDenominator(), getNumerator());  }
 
     // return a / b
     public RationalNumber divides(RationalNumber b) {
@@ -140,4 +248,4 @@ public class RationalNumber implements Comparable<RationalNumber> {
         return a.times(b.reciprocal());
     }
 
-}
\ No newline at end of file
+}
@@ -23,12 +23,12 @@ public class RationalProbSemiRing extends SemiRing<RationalNumber> {
 
 	@Override
 	public RationalNumber zero() {
-		return new RationalNumber(0, 1);
+		return RationalNumber.ZERO;
 	}
 
 	@Override
 	public RationalNumber one() {
-		return new RationalNumber(1, 1);
+		return RationalNumber.ONE;
 	}
 	
 }
@@ -0,0 +1,1033 @@
+package com.tr.sptools.spn;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+import com.tr.sptools.base.AbstractDistribution;
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.IndexedConfiguration;
+import com.tr.sptools.base.VariableDictionary;
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.IntSemiRing;
+import com.tr.sptools.semiring.MaxProductSemiRing;
+import com.tr.sptools.semiring.SemiRing;
+
+/**
+ * Immutable, flattened form of an SPN.
+ *
+ * The nodes of the SPN are stored in topological order (children before
+ * parents, root last). Each distinct node appears exactly once, so shared
+ * sub-nodes are evaluated once per query. Edges are stored as int index
+ * arrays and sum weights as a parallel weight array, so that a configuration
+ * is evaluated in a single linear pass without hash lookups or virtual calls.
+ * Variables missing from a configuration are summed out in the same pass.
+ *
+ * Large SPNs can be evaluated in parallel on a ForkJoinPool. Nodes are
+ * grouped into levels by their height above the indicators; the nodes of
+ * one level only depend on lower levels and are split into tasks, while
+ * levels with little work are evaluated sequentially. Every node is still
+ * computed by a single thread, summing its children in their fixed order,
+ * so parallel results are identical to sequential ones.
+ *
+ * A compiled SPN is a snapshot: changes made to the original SPN after
+ * compilation are not reflected.
+ *
+ * @param <V> The value type used by the SPN (e.g. double for probability or integer for ranks)
+ */
+public class CompiledSPN<V> implements AbstractDistribution<V> {
+
+	static final byte INDICATOR = 0;
+	static final byte SUM = 1;
+	static final byte PRODUCT = 2;
+
+	/** Evidence entry of a variable that is not part of the configuration */
+	private static final int UNOBSERVED = -1;
+
+	/** Number of configurations evaluated together by getWeights */
+	private static final int BATCH_SIZE = 256;
+
+	/** Minimum number of edge evaluations (edges times batch size) per parallel task */
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+
+	/** The semiring in use for calculations */
+	private final SemiRing<V> semiRing;
+
+	/** The original nodes, in topological order */
+	private final List<SPNElement<V>> nodes;
+
+	/** Position of each original node, keyed by node identity */
+	private final Map<SPNElement<V>, Integer> index;
+
+	/** Node type per node (INDICATOR, SUM or PRODUCT) */
+	private final byte[] types;
+
+	/** Children of node i are children[childStart[i]] .. children[childStart[i+1]-1] */
+	private final int[] childStart;
+	private final int[] children;
+
+	/** Weight per edge (only used for edges of sum nodes) */
+	private final V[] weights;
+
+	/** Unboxed edge weights, if the semiring is a DoubleSemiRing (null otherwise) */
+	private final double[] doubleWeights;
+
+	/** Unboxed edge weights, if the semiring is an IntSemiRing (null otherwise) */
+	private final int[] intWeights;
+
+	/** Interned variable names */
+	private final String[] variables;
+
+	/** Dictionary used to read indexed configurations */
+	private final VariableDictionary dictionary;
+
+	/** Dictionary index of each interned variable */
+	private final int[] dictIndex;
+
+	/** Variable index per indicator node (-1 for other nodes) */
+	private final int[] indicatorVar;
+
+	/** Integer-coded value per indicator node */
+	private final int[] indicatorValue;
+
+	/** Variables covered by each node, as a set of interned variable indices */
+	private final BitSet[] scopes;
+
+	/** Number of values of each interned variable (the largest indicator value plus one, at least 2) */
+	private final int[] domainSizes;
+
+	/** Indicator x=v has literal index literalStart[x] + v */
+	private final int[] literalStart;
+
+	/** Literals of the indicators below each node */
+	private final BitSet[] literals;
+
+	/** Per node, true iff it and all nodes below it are complete (computed on first use) */
+	private boolean[] completeBelow;
+
+	/** Per node, true iff it and all nodes below it are consistent (computed on first use) */
+	private boolean[] consistentBelow;
+
+	/** Nodes of level l are levelNodes[levelStart[l]] .. levelNodes[levelStart[l+1]-1] */
+	private final int[] levelStart;
+	private final int[] levelNodes;
+
+	/** levelWork[p] is the number of nodes and edges of levelNodes[0] .. levelNodes[p-1] */
+	private final long[] levelWork;
+
+	@SuppressWarnings("unchecked")
+	private CompiledSPN(SemiRing<V> semiRing, List<SPNElement<V>> nodes, Map<SPNElement<V>, Integer> index, VariableDictionary dictionary) {
+		this.semiRing = semiRing;
+		this.dictionary = dictionary;
+		this.nodes = Collections.unmodifiableList(nodes);
+		this.index = index;
+		int n = nodes.size();
+		this.types = new byte[n];
+		this.childStart = new int[n + 1];
+		this.indicatorVar = new int[n];
+		this.indicatorValue = new int[n];
+
+		Map<String, Integer> varIndex = new LinkedHashMap<String, Integer>();
+		List<Integer> edges = new ArrayList<Integer>();
+		List<V> edgeWeights = new ArrayList<V>();
+		for (int i = 0; i < n; i++) {
+			SPNElement<V> e = nodes.get(i);
+			childStart[i] = edges.size();
+			indicatorVar[i] = -1;
+			if (e instanceof SPNIndicator) {
+				SPNIndicator<V> ind = (SPNIndicator<V>)e;
+				types[i] = INDICATOR;
+				Integer v = varIndex.get(ind.getVariable());
+				if (v == null) {
+					v = varIndex.size();
+					varIndex.put(ind.getVariable(), v);
+				}
+				indicatorVar[i] = v;
+				indicatorValue[i] = ind.getIntValue();
+			} else if (e instanceof SPNSumNode) {
+				SPNSumNode<V> sum = (SPNSumNode<V>)e;
+				types[i] = SUM;
+				for (SPNElement<V> sub: sum.getSubs()) {
+					edges.add(index.get(sub));
+					edgeWeights.add(sum.getWeight(sub));
+				}
+			} else if (e instanceof SPNProductNode) {
+				types[i] = PRODUCT;
+				for (SPNElement<V> sub: ((SPNProductNode<V>)e).getSubs()) {
+					edges.add(index.get(sub));
+					edgeWeights.add(null);
+				}
+			} else {
+				throw new IllegalArgumentException("Unsupported SPN element " + e.getClass().getName());
+			}
+		}
+		childStart[n] = edges.size();
+
+		this.children = new int[edges.size()];
+		this.weights = (V[])new Object[edges.size()];
+		for (int k = 0; k < children.length; k++) {
+			children[k] = edges.get(k);
+			weights[k] = edgeWeights.get(k);
+		}
+		this.variables = varIndex.keySet().toArray(new String[varIndex.size()]);
+		this.dictIndex = new int[variables.length];
+		for (int v = 0; v < variables.length; v++) {
+			dictIndex[v] = dictionary.add(variables[v]);
+		}
+
+		// Domains and literals
+		this.domainSizes = new int[variables.length];
+		Arrays.fill(domainSizes, 2);
+		for (int i = 0; i < n; i++) {
+			if (types[i] == INDICATOR) {
+				domainSizes[indicatorVar[i]] = Math.max(domainSizes[indicatorVar[i]], indicatorValue[i] + 1);
+			}
+		}
+		this.literalStart = new int[variables.length + 1];
+		for (int v = 0; v < variables.length; v++) {
+			literalStart[v + 1] = literalStart[v] + domainSizes[v];
+		}
+
+		// Scopes and literal sets, bottom-up
+		this.scopes = new BitSet[n];
+		this.literals = new BitSet[n];
+		for (int i = 0; i < n; i++) {
+			if (types[i] == INDICATOR) {
+				scopes[i] = new BitSet(variables.length);
+				scopes[i].set(indicatorVar[i]);
+				literals[i] = new BitSet(literalStart[variables.length]);
+				literals[i].set(literalStart[indicatorVar[i]] + indicatorValue[i]);
+			} else if (childStart[i] + 1 == childStart[i + 1]) {
+				scopes[i] = scopes[children[childStart[i]]];
+				literals[i] = literals[children[childStart[i]]];
+			} else {
+				scopes[i] = new BitSet(variables.length);
+				literals[i] = new BitSet(literalStart[variables.length]);
+				for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+					scopes[i].or(scopes[children[k]]);
+					literals[i].or(literals[children[k]]);
+				}
+			}
+		}
+
+		// Levels: indicators at level 0, other nodes one above their highest child
+		int[] level = new int[n];
+		int levels = 1;
+		for (int i = 0; i < n; i++) {
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				level[i] = Math.max(level[i], level[children[k]] + 1);
+			}
+			levels = Math.max(levels, level[i] + 1);
+		}
+		this.levelStart = new int[levels + 1];
+		for (int i = 0; i < n; i++) {
+			levelStart[level[i] + 1]++;
+		}
+		for (int l = 0; l < levels; l++) {
+			levelStart[l + 1] += levelStart[l];
+		}
+		this.levelNodes = new int[n];
+		int[] next = Arrays.copyOf(levelStart, levels);
+		for (int i = 0; i < n; i++) {
+			levelNodes[next[level[i]]++] = i;
+		}
+		this.levelWork = new long[n + 1];
+		for (int p = 0; p < n; p++) {
+			int i = levelNodes[p];
+			levelWork[p + 1] = levelWork[p] + 1 + childStart[i + 1] - childStart[i];
+		}
+
+		DoubleSemiRing<V> dsr = DoubleSemiRing.of(semiRing);
+		IntSemiRing<V> isr = IntSemiRing.of(semiRing);
+		this.doubleWeights = dsr != null? new double[weights.length]: null;
+		this.intWeights = isr != null? new int[weights.length]: null;
+		for (int k = 0; k < weights.length; k++) {
+			if (weights[k] == null) continue;
+			if (doubleWeights != null) doubleWeights[k] = dsr.toDouble(weights[k]);
+			if (intWeights != null) intWeights[k] = isr.toInt(weights[k]);
+		}
+	}
+
+	/**
+	 * Compile the SPN rooted at the given element.
+	 *
+	 * @param root Root of the SPN
+	 * @return Compiled form of the SPN
+	 */
+	public static <V> CompiledSPN<V> compile(SPNElement<V> root) {
+		return compile(root, new VariableDictionary());
+	}
+
+	/**
+	 * Compile the SPN rooted at the given element, for evaluation of 
+	 * configurations indexed by the given dictionary. Variables of the 
+	 * SPN that are not yet part of the dictionary are added to it.
+	 *
+	 * @param root Root of the SPN
+	 * @param dictionary Dictionary of variables
+	 * @return Compiled form of the SPN
+	 */
+	public static <V> CompiledSPN<V> compile(SPNElement<V> root, VariableDictionary dictionary) {
+		// Iterative post-order traversal, visiting each distinct node once
+		List<SPNElement<V>> order = new ArrayList<SPNElement<V>>();
+		Map<SPNElement<V>, Integer> index = new IdentityHashMap<SPNElement<V>, Integer>();
+		Set<SPNElement<V>> expanded = Collections.newSetFromMap(new IdentityHashMap<SPNElement<V>, Boolean>());
+		Deque<SPNElement<V>> stack = new ArrayDeque<SPNElement<V>>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			SPNElement<V> e = stack.peek();
+			if (index.containsKey(e)) {
+				stack.pop();
+			} else if (expanded.add(e)) {
+				for (SPNElement<V> sub: getSubs(e)) {
+					if (!index.containsKey(sub)) stack.push(sub);
+				}
+			} else {
+				stack.pop();
+				index.put(e, order.size());
+				order.add(e);
+			}
+		}
+		return new CompiledSPN<V>(root.getSemiRing(), order, index, dictionary);
+	}
+
+	private static <V> Iterable<SPNElement<V>> getSubs(SPNElement<V> e) {
+		if (e instanceof SPNSumNode) return ((SPNSumNode<V>)e).getSubs();
+		if (e instanceof SPNProductNode) return ((SPNProductNode<V>)e).getSubs();
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Return weight (e.g. probability or rank) of given configuration.
+	 * 
+	 * The configuration may be partial: indicators of variables it does not
+	 * assign evaluate to one(). For a complete and consistent SPN this sums
+	 * out those variables, so the weight of a partial configuration (e.g. a
+	 * marginal) costs a single pass over the SPN.
+	 */
+	@Override
+	public V getWeight(Configuration config) {
+		return getWeight(config, null);
+	}
+
+	/**
+	 * Return weight of given configuration, evaluating the SPN on the given pool.
+	 * 
+	 * @param config Configuration to evaluate
+	 * @param pool Pool to evaluate large levels of the SPN on, or null to evaluate sequentially
+	 */
+	public V getWeight(Configuration config, ForkJoinPool pool) {
+		return evaluate(readEvidence(Collections.singletonList(config)), 1, pool).get(0);
+	}
+
+	/**
+	 * Return weight of given configuration, which must use the dictionary
+	 * this SPN was compiled with.
+	 */
+	public V getWeight(IndexedConfiguration config) {
+		return evaluate(readIndexedEvidence(Collections.singletonList(config)), 1, null).get(0);
+	}
+
+	/**
+	 * @return Sum weight of set of configurations, evaluated in batches
+	 */
+	@Override
+	public V getWeight(Collection<Configuration> cfgs) {
+		V w = semiRing.zero();
+		for (V v: getWeights(new ArrayList<Configuration>(cfgs))) {
+			w = semiRing.sum(w, v);
+		}
+		return w;
+	}
+
+	/**
+	 * Return weights of the given configurations.
+	 * 
+	 * Configurations are evaluated in batches: every node is visited once
+	 * per batch and computes its value for all configurations of the batch
+	 * in a tight loop.
+	 * 
+	 * @param configs Configurations to evaluate
+	 * @return Weight of each configuration, in the same order
+	 */
+	public List<V> getWeights(List<Configuration> configs) {
+		return getWeights(configs, null);
+	}
+
+	/**
+	 * Return weights of the given configurations, evaluating each batch on the given pool.
+	 * 
+	 * @param configs Configurations to evaluate
+	 * @param pool Pool to evaluate large levels of the SPN on, or null to evaluate sequentially
+	 * @return Weight of each configuration, in the same order
+	 * @see #getWeights(List)
+	 */
+	public List<V> getWeights(List<Configuration> configs, ForkJoinPool pool) {
+		List<V> res = new ArrayList<V>(configs.size());
+		for (int from = 0; from < configs.size(); from += BATCH_SIZE) {
+			List<Configuration> batch = configs.subList(from, Math.min(from + BATCH_SIZE, configs.size()));
+			res.addAll(evaluate(readEvidence(batch), batch.size(), pool));
+		}
+		return res;
+	}
+
+	/**
+	 * Return weights of the given configurations, which must use the 
+	 * dictionary this SPN was compiled with.
+	 * 
+	 * @see #getWeights(List)
+	 */
+	public List<V> getIndexedWeights(List<IndexedConfiguration> configs) {
+		List<V> res = new ArrayList<V>(configs.size());
+		for (int from = 0; from < configs.size(); from += BATCH_SIZE) {
+			List<IndexedConfiguration> batch = configs.subList(from, Math.min(from + BATCH_SIZE, configs.size()));
+			res.addAll(evaluate(readIndexedEvidence(batch), batch.size(), null));
+		}
+		return res;
+	}
+
+	/**
+	 * Compute the values and derivatives of all nodes for the given evidence,
+	 * which gives the marginals of all variables at once.
+	 *
+	 * A forward pass computes the value of every node. A backward pass then
+	 * propagates derivatives from the root (derivative one()) to the
+	 * children: a sum node passes its derivative times the edge weight,
+	 * a product node its derivative times the product of the values of the
+	 * other children. The latter are formed from prefix and suffix products
+	 * without division, so any (commutative) semiring can be used.
+	 *
+	 * @param evidence A configuration of (some) variables of this SPN
+	 * @return Values and derivatives of all nodes
+	 */
+	public SPNDerivatives<V> getDerivatives(Configuration evidence) {
+		V zero = semiRing.zero();
+		V one = semiRing.one();
+		int n = types.length;
+		@SuppressWarnings("unchecked")
+		V[] values = (V[])new Object[n];
+		int[] ev = readEvidence(Collections.singletonList(evidence));
+		run(1, null, i -> computeGeneric(i, values, ev, 1));
+
+		@SuppressWarnings("unchecked")
+		V[] derivatives = (V[])new Object[n];
+		Arrays.fill(derivatives, zero);
+		derivatives[n - 1] = one;
+		@SuppressWarnings("unchecked")
+		V[] prefix = (V[])new Object[maxChildren()];
+		for (int i = n - 1; i >= 0; i--) {
+			V d = derivatives[i];
+			if (types[i] == INDICATOR || zero.equals(d)) continue;
+			if (types[i] == SUM) {
+				for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+					int c = children[k];
+					derivatives[c] = semiRing.sum(derivatives[c], semiRing.product(d, weights[k]));
+				}
+			} else {
+				// prefix[j] is the product of the values of the children before child j
+				int start = childStart[i];
+				int m = childStart[i + 1] - start;
+				V p = one;
+				for (int j = 0; j < m; j++) {
+					prefix[j] = p;
+					p = semiRing.product(p, values[children[start + j]]);
+				}
+				V suffix = one;
+				for (int j = m - 1; j >= 0; j--) {
+					int c = children[start + j];
+					derivatives[c] = semiRing.sum(derivatives[c], semiRing.product(d, semiRing.product(prefix[j], suffix)));
+					suffix = semiRing.product(values[c], suffix);
+				}
+			}
+		}
+
+		// Sum the derivatives of the indicators of each variable and value
+		Map<String, V[]> indicatorSums = new LinkedHashMap<String, V[]>();
+		for (int v = 0; v < variables.length; v++) {
+			@SuppressWarnings("unchecked")
+			V[] sums = (V[])new Object[domainSizes[v]];
+			Arrays.fill(sums, zero);
+			indicatorSums.put(variables[v], sums);
+		}
+		for (int i = 0; i < n; i++) {
+			if (types[i] != INDICATOR) continue;
+			V[] sums = indicatorSums.get(variables[indicatorVar[i]]);
+			int value = indicatorValue[i];
+			sums[value] = semiRing.sum(sums[value], derivatives[i]);
+		}
+		return new SPNDerivatives<V>(this, evidence, values, derivatives, indicatorSums);
+	}
+
+	/**
+	 * @return Largest number of children of a node
+	 */
+	private int maxChildren() {
+		int max = 0;
+		for (int i = 0; i < types.length; i++) {
+			max = Math.max(max, childStart[i + 1] - childStart[i]);
+		}
+		return max;
+	}
+
+	/**
+	 * Return a most probable explanation of the given evidence: a total
+	 * configuration of the variables of this SPN that is consistent with
+	 * the evidence and has the best weight (highest probability, lowest
+	 * rank). Uses the selective semiring of {@link MaxProductSemiRing#forSemiRing(SemiRing)}.
+	 *
+	 * @param evidence A configuration of (some) variables of this SPN
+	 * @return The explanation, including the evidence
+	 * @see #getMostProbableExplanation(Configuration, SemiRing)
+	 */
+	public Configuration getMostProbableExplanation(Configuration evidence) {
+		return getMostProbableExplanation(evidence, MaxProductSemiRing.forSemiRing(semiRing));
+	}
+
+	/**
+	 * Return a configuration of maximal weight under the given selective
+	 * semiring, i.e. one whose sum always returns one of its arguments.
+	 *
+	 * The SPN is evaluated once in the given semiring, with indicators of
+	 * variables not assigned by the evidence set to one(). Each sum node
+	 * remembers the first child that gives its value. The explanation is
+	 * then read off top-down, following the chosen child of each sum node
+	 * and all children of each product node. This gives the exact answer
+	 * for complete and consistent SPNs that are selective, such as those
+	 * compiled from networks, and an approximation (the best induced tree)
+	 * otherwise. Variables not reached by the trace keep the value false.
+	 *
+	 * @param evidence A configuration of (some) variables of this SPN
+	 * @param selective Semiring with the values of this SPN and a selective sum
+	 * @return The explanation, including the evidence
+	 * @throws IllegalArgumentException If the evidence has weight zero()
+	 */
+	public Configuration getMostProbableExplanation(Configuration evidence, SemiRing<V> selective) {
+		V zero = selective.zero();
+		V one = selective.one();
+		@SuppressWarnings("unchecked")
+		V[] values = (V[])new Object[types.length];
+		int[] best = new int[types.length];
+		for (int i = 0; i < types.length; i++) {
+			switch (types[i]) {
+			case INDICATOR: {
+				String var = variables[indicatorVar[i]];
+				values[i] = !evidence.hasVariable(var) || evidence.getIntValue(var) == indicatorValue[i]? one: zero;
+				break;
+			}
+			case SUM:
+				values[i] = zero;
+				best[i] = -1;
+				for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+					V v = selective.product(weights[k], values[children[k]]);
+					if (best[i] < 0 || !selective.sum(values[i], v).equals(values[i])) {
+						values[i] = v;
+						best[i] = k;
+					}
+				}
+				break;
+			default:
+				values[i] = one;
+				for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+					values[i] = selective.product(values[i], values[children[k]]);
+				}
+			}
+		}
+		if (zero.equals(values[types.length - 1])) {
+			throw new IllegalArgumentException("Evidence " + evidence + " has weight " + zero);
+		}
+
+		int[] assignment = new int[variables.length];
+		boolean[] visited = new boolean[types.length];
+		Deque<Integer> stack = new ArrayDeque<Integer>();
+		stack.push(types.length - 1);
+		while (!stack.isEmpty()) {
+			int i = stack.pop();
+			if (visited[i]) continue;
+			visited[i] = true;
+			if (types[i] == INDICATOR) {
+				assignment[indicatorVar[i]] = indicatorValue[i];
+			} else if (types[i] == SUM) {
+				if (best[i] >= 0) stack.push(children[best[i]]);
+			} else {
+				for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+					stack.push(children[k]);
+				}
+			}
+		}
+		Configuration res = evidence.copy();
+		for (int v = 0; v < variables.length; v++) {
+			if (!res.hasVariable(variables[v])) res.putValue(variables[v], assignment[v]);
+		}
+		return res;
+	}
+
+	/**
+	 * Evaluate one batch of configurations.
+	 */
+	private List<V> evaluate(int[] evidence, int b, ForkJoinPool pool) {
+		List<V> res = new ArrayList<V>(b);
+		if (doubleWeights != null) {
+			DoubleSemiRing<V> sr = DoubleSemiRing.of(semiRing);
+			for (double w: evaluateDouble(evidence, b, sr, pool)) {
+				res.add(sr.fromDouble(w));
+			}
+		} else if (intWeights != null) {
+			IntSemiRing<V> sr = IntSemiRing.of(semiRing);
+			for (int w: evaluateInt(evidence, b, sr, pool)) {
+				res.add(sr.fromInt(w));
+			}
+		} else {
+			Collections.addAll(res, evaluateGeneric(evidence, b, pool));
+		}
+		return res;
+	}
+
+	/**
+	 * Call node.accept(i) for every node i, children before parents.
+	 * With a pool, the nodes of each level are computed in parallel.
+	 */
+	private void run(int b, ForkJoinPool pool, IntConsumer node) {
+		if (pool == null) {
+			for (int i = 0; i < types.length; i++) {
+				node.accept(i);
+			}
+			return;
+		}
+		for (int l = 0; l + 1 < levelStart.length; l++) {
+			LevelTask task = new LevelTask(levelStart[l], levelStart[l + 1], b, node);
+			if (task.isSmall()) {
+				task.compute();
+			} else {
+				pool.invoke(task);
+			}
+		}
+	}
+
+	/**
+	 * Computes the nodes levelNodes[from] .. levelNodes[to-1], which do not depend on each other.
+	 */
+	private class LevelTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int from;
+		private final int to;
+		private final int b;
+		private final IntConsumer node;
+
+		LevelTask(int from, int to, int b, IntConsumer node) {
+			this.from = from;
+			this.to = to;
+			this.b = b;
+			this.node = node;
+		}
+
+		boolean isSmall() {
+			return to - from < 2 || (levelWork[to] - levelWork[from]) * b < PARALLEL_THRESHOLD;
+		}
+
+		@Override
+		protected void compute() {
+			if (isSmall()) {
+				for (int p = from; p < to; p++) {
+					node.accept(levelNodes[p]);
+				}
+			} else {
+				int mid = (from + to) >>> 1;
+				invokeAll(new LevelTask(from, mid, b, node), new LevelTask(mid, to, b, node));
+			}
+		}
+	}
+
+	/*
+	 * The evaluate methods below store the values of node i for a batch of
+	 * b configurations in values[i*b] .. values[i*b+b-1].
+	 */
+
+	@SuppressWarnings("unchecked")
+	private V[] evaluateGeneric(int[] evidence, int b, ForkJoinPool pool) {
+		V[] values = (V[])new Object[types.length * b];
+		run(b, pool, i -> computeGeneric(i, values, evidence, b));
+		return Arrays.copyOfRange(values, (types.length - 1) * b, types.length * b);
+	}
+
+	private void computeGeneric(int i, V[] values, int[] evidence, int b) {
+		V zero = semiRing.zero();
+		V one = semiRing.one();
+		int row = i * b;
+		switch (types[i]) {
+		case INDICATOR: {
+			int ev = indicatorVar[i] * b;
+			int match = indicatorValue[i];
+			for (int j = 0; j < b; j++) {
+				values[row + j] = evidence[ev + j] == match || evidence[ev + j] == UNOBSERVED? one: zero;
+			}
+			break;
+		}
+		case SUM:
+			Arrays.fill(values, row, row + b, zero);
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				int c = children[k] * b;
+				for (int j = 0; j < b; j++) {
+					values[row + j] = semiRing.sum(values[row + j], semiRing.product(weights[k], values[c + j]));
+				}
+			}
+			break;
+		default:
+			Arrays.fill(values, row, row + b, one);
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				int c = children[k] * b;
+				for (int j = 0; j < b; j++) {
+					values[row + j] = semiRing.product(values[row + j], values[c + j]);
+				}
+			}
+		}
+	}
+
+	private double[] evaluateDouble(int[] evidence, int b, DoubleSemiRing<V> sr, ForkJoinPool pool) {
+		double[] values = new double[types.length * b];
+		run(b, pool, i -> computeDouble(i, values, evidence, b, sr));
+		return Arrays.copyOfRange(values, (types.length - 1) * b, types.length * b);
+	}
+
+	private void computeDouble(int i, double[] values, int[] evidence, int b, DoubleSemiRing<V> sr) {
+		double zero = sr.zeroDouble();
+		double one = sr.oneDouble();
+		int row = i * b;
+		switch (types[i]) {
+		case INDICATOR: {
+			int ev = indicatorVar[i] * b;
+			int match = indicatorValue[i];
+			for (int j = 0; j < b; j++) {
+				values[row + j] = evidence[ev + j] == match || evidence[ev + j] == UNOBSERVED? one: zero;
+			}
+			break;
+		}
+		case SUM:
+			Arrays.fill(values, row, row + b, zero);
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				int c = children[k] * b;
+				double w = doubleWeights[k];
+				for (int j = 0; j < b; j++) {
+					values[row + j] = sr.sumDouble(values[row + j], sr.productDouble(w, values[c + j]));
+				}
+			}
+			break;
+		default:
+			Arrays.fill(values, row, row + b, one);
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				int c = children[k] * b;
+				for (int j = 0; j < b; j++) {
+					values[row + j] = sr.productDouble(values[row + j], values[c + j]);
+				}
+			}
+		}
+	}
+
+	private int[] evaluateInt(int[] evidence, int b, IntSemiRing<V> sr, ForkJoinPool pool) {
+		int[] values = new int[types.length * b];
+		run(b, pool, i -> computeInt(i, values, evidence, b, sr));
+		return Arrays.copyOfRange(values, (types.length - 1) * b, types.length * b);
+	}
+
+	private void computeInt(int i, int[] values, int[] evidence, int b, IntSemiRing<V> sr) {
+		int zero = sr.zeroInt();
+		int one = sr.oneInt();
+		int row = i * b;
+		switch (types[i]) {
+		case INDICATOR: {
+			int ev = indicatorVar[i] * b;
+			int match = indicatorValue[i];
+			for (int j = 0; j < b; j++) {
+				values[row + j] = evidence[ev + j] == match || evidence[ev + j] == UNOBSERVED? one: zero;
+			}
+			break;
+		}
+		case SUM:
+			Arrays.fill(values, row, row + b, zero);
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				int c = children[k] * b;
+				int w = intWeights[k];
+				for (int j = 0; j < b; j++) {
+					values[row + j] = sr.sumInt(values[row + j], sr.productInt(w, values[c + j]));
+				}
+			}
+			break;
+		default:
+			Arrays.fill(values, row, row + b, one);
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				int c = children[k] * b;
+				for (int j = 0; j < b; j++) {
+					values[row + j] = sr.productInt(values[row + j], values[c + j]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Value of each interned variable in each of the given configurations
+	 * (its integer-coded value or UNOBSERVED), stored as evidence[v*b] .. evidence[v*b+b-1]
+	 * for variable v.
+	 */
+	private int[] readEvidence(List<Configuration> batch) {
+		int b = batch.size();
+		int[] evidence = new int[variables.length * b];
+		for (int j = 0; j < b; j++) {
+			Configuration config = batch.get(j);
+			for (int v = 0; v < variables.length; v++) {
+				if (!config.hasVariable(variables[v])) {
+					evidence[v * b + j] = UNOBSERVED;
+				} else {
+					evidence[v * b + j] = config.getIntValue(variables[v]);
+				}
+			}
+		}
+		return evidence;
+	}
+
+	/**
+	 * @see #readEvidence(List)
+	 */
+	private int[] readIndexedEvidence(List<IndexedConfiguration> batch) {
+		int b = batch.size();
+		int[] evidence = new int[variables.length * b];
+		for (int j = 0; j < b; j++) {
+			IndexedConfiguration config = batch.get(j);
+			if (config.getDictionary() != dictionary) {
+				throw new IllegalArgumentException("Configuration uses a different dictionary");
+			}
+			for (int v = 0; v < variables.length; v++) {
+				if (!config.hasVariable(dictIndex[v])) {
+					evidence[v * b + j] = UNOBSERVED;
+				} else {
+					evidence[v * b + j] = config.getValue(dictIndex[v])? 1: 0;
+				}
+			}
+		}
+		return evidence;
+	}
+
+	/**
+	 * @return The dictionary used to read indexed configurations
+	 */
+	public VariableDictionary getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return True iff all children of every sum node cover the same set of variables
+	 */
+	public boolean isComplete() {
+		return findIncompleteNode() == null;
+	}
+
+	/**
+	 * @return A sum node whose children do not all cover the same set of variables, or null if there is none
+	 */
+	public SPNElement<V> findIncompleteNode() {
+		for (int i = 0; i < types.length; i++) {
+			if (!isLocallyComplete(i)) return nodes.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * @return True iff the given node of this SPN, and all nodes below it, are complete
+	 */
+	public boolean isComplete(SPNElement<V> node) {
+		int i = indexOf(node);
+		synchronized (this) {
+			if (completeBelow == null) {
+				completeBelow = new boolean[types.length];
+				for (int j = 0; j < types.length; j++) {
+					completeBelow[j] = isLocallyComplete(j) && allBelow(completeBelow, j);
+				}
+			}
+			return completeBelow[i];
+		}
+	}
+
+	/**
+	 * @return True iff node i is not a sum node, or all its children cover the same set of variables
+	 */
+	private boolean isLocallyComplete(int i) {
+		if (types[i] != SUM) return true;
+		for (int k = childStart[i] + 1; k < childStart[i + 1]; k++) {
+			if (!scopes[children[k]].equals(scopes[children[childStart[i]]])) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True iff the flag of every child of node i is set
+	 */
+	private boolean allBelow(boolean[] flags, int i) {
+		for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+			if (!flags[children[k]]) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return True iff no variable takes different values in different children of the same product node
+	 */
+	public boolean isConsistent() {
+		return findInconsistentNode() == null;
+	}
+
+	/**
+	 * Find a product node with a variable that takes one value in one child
+	 * and another value in another child. Each product node is checked with
+	 * a single pass over its children: only the variables a child shares
+	 * with the preceding children need to be looked at.
+	 * 
+	 * @return An inconsistent product node, or null if there is none
+	 */
+	public SPNElement<V> findInconsistentNode() {
+		for (int i = 0; i < types.length; i++) {
+			if (!isLocallyConsistent(i)) return nodes.get(i);
+		}
+		return null;
+	}
+
+	/**
+	 * @return True iff the given node of this SPN, and all nodes below it, are consistent
+	 */
+	public boolean isConsistent(SPNElement<V> node) {
+		int i = indexOf(node);
+		synchronized (this) {
+			if (consistentBelow == null) {
+				consistentBelow = new boolean[types.length];
+				for (int j = 0; j < types.length; j++) {
+					consistentBelow[j] = isLocallyConsistent(j) && allBelow(consistentBelow, j);
+				}
+			}
+			return consistentBelow[i];
+		}
+	}
+
+	/**
+	 * @return True iff node i is not a product node, or no variable takes
+	 * different values in different children of it
+	 */
+	private boolean isLocallyConsistent(int i) {
+		if (types[i] != PRODUCT) return true;
+		BitSet seen = new BitSet(variables.length);
+		BitSet lits = new BitSet(literalStart[variables.length]);
+		for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+			int c = children[k];
+			if (seen.intersects(scopes[c])) {
+				BitSet union = (BitSet)lits.clone();
+				union.or(literals[c]);
+				BitSet shared = (BitSet)seen.clone();
+				shared.and(scopes[c]);
+				for (int v = shared.nextSetBit(0); v >= 0; v = shared.nextSetBit(v + 1)) {
+					int second = union.nextSetBit(union.nextSetBit(literalStart[v]) + 1);
+					if (second >= 0 && second < literalStart[v + 1]) {
+						return false;
+					}
+				}
+			}
+			seen.or(scopes[c]);
+			lits.or(literals[c]);
+		}
+		return true;
+	}
+
+	/**
+	 * Check if this SPN is complete and consistent.
+	 * 
+	 * @throws IllegalStateException naming the first offending node, if the check fails
+	 */
+	public void check() {
+		SPNElement<V> e = findIncompleteNode();
+		if (e != null) {
+			throw new IllegalStateException("Incomplete sum node: " + e);
+		}
+		e = findInconsistentNode();
+		if (e != null) {
+			throw new IllegalStateException("Inconsistent product node: " + e);
+		}
+	}
+
+	/**
+	 * @return The variables covered by the given node of this SPN
+	 */
+	public Set<String> getScope(SPNElement<V> node) {
+		int i = indexOf(node);
+		Set<String> vars = new LinkedHashSet<String>();
+		for (int v = scopes[i].nextSetBit(0); v >= 0; v = scopes[i].nextSetBit(v + 1)) {
+			vars.add(variables[v]);
+		}
+		return vars;
+	}
+
+	int indexOf(SPNElement<V> node) {
+		Integer i = index.get(node);
+		if (i == null) {
+			throw new IllegalArgumentException("Node is not part of this SPN");
+		}
+		return i;
+	}
+
+	/**
+	 * @return Number of distinct nodes in the compiled SPN
+	 */
+	public int size() {
+		return types.length;
+	}
+
+	/**
+	 * @return The original nodes, in topological order (root last)
+	 */
+	public List<SPNElement<V>> getNodes() {
+		return nodes;
+	}
+
+	@Override
+	public Collection<String> getVariables() {
+		Set<String> vars = new LinkedHashSet<String>();
+		Collections.addAll(vars, variables);
+		return vars;
+	}
+
+	/**
+	 * @return The distinct indicator nodes below the given node of this SPN, in topological order
+	 */
+	@SuppressWarnings("unchecked")
+	public List<SPNIndicator<V>> getIndicators(SPNElement<V> node) {
+		int root = indexOf(node);
+		// Children come before their parents, so one backward pass marks the nodes below root
+		boolean[] below = new boolean[root + 1];
+		below[root] = true;
+		for (int i = root; i >= 0; i--) {
+			if (!below[i]) continue;
+			for (int k = childStart[i]; k < childStart[i + 1]; k++) {
+				below[children[k]] = true;
+			}
+		}
+		List<SPNIndicator<V>> res = new ArrayList<SPNIndicator<V>>();
+		for (int i = 0; i <= root; i++) {
+			if (below[i] && types[i] == INDICATOR) res.add((SPNIndicator<V>)nodes.get(i));
+		}
+		return res;
+	}
+
+	@Override
+	public SemiRing<V> getSemiRing() {
+		return semiRing;
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.tr.sptools.spn;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.Distribution;
+
+/**
+ * Values and derivatives of all nodes of an SPN for one evidence
+ * configuration, as computed by {@link CompiledSPN#getDerivatives(Configuration)}.
+ *
+ * The derivative of a node is the derivative of the root with respect to
+ * the value of the node. For an indicator of x=v in a complete and
+ * consistent SPN it is the weight of the evidence with x set to v, so the
+ * marginals of all variables are read off the indicators.
+ *
+ * @param <V> The value type used by the SPN (e.g. double for probability or integer for ranks)
+ */
+public class SPNDerivatives<V> {
+
+	private final CompiledSPN<V> spn;
+	private final Configuration evidence;
+	private final V[] values;
+	private final V[] derivatives;
+
+	/** Sum of the derivatives of the indicators of each variable, indexed by value */
+	private final Map<String, V[]> indicatorSums;
+
+	SPNDerivatives(CompiledSPN<V> spn, Configuration evidence, V[] values, V[] derivatives, Map<String, V[]> indicatorSums) {
+		this.spn = spn;
+		this.evidence = evidence.copy();
+		this.values = values;
+		this.derivatives = derivatives;
+		this.indicatorSums = indicatorSums;
+	}
+
+	/**
+	 * @return The evidence the SPN was evaluated for
+	 */
+	public Configuration getEvidence() {
+		return evidence.copy();
+	}
+
+	/**
+	 * @return Weight of the evidence (the value of the root)
+	 */
+	public V getWeight() {
+		return values[values.length - 1];
+	}
+
+	/**
+	 * @return Value of the given node for the evidence
+	 */
+	public V getValue(SPNElement<V> node) {
+		return values[spn.indexOf(node)];
+	}
+
+	/**
+	 * @return Derivative of the root with respect to the value of the given node
+	 */
+	public V getDerivative(SPNElement<V> node) {
+		return derivatives[spn.indexOf(node)];
+	}
+
+	/**
+	 * Return the joint weights of the values of a variable together with
+	 * the evidence on the other variables (evidence on the variable itself
+	 * is ignored). For probabilities, normalizing the result gives the
+	 * posterior distribution of the variable.
+	 *
+	 * @param var A variable of the SPN
+	 * @return Distribution over the variable
+	 */
+	public Distribution<V> getMarginal(String var) {
+		V[] sums = indicatorSums.get(var);
+		if (sums == null) {
+			throw new IllegalArgumentException("Illegal variable, " + var + " is not part of the SPN");
+		}
+		return Distribution.singleton(spn.getSemiRing(), var, Arrays.asList(sums));
+	}
+
+	/**
+	 * @return Marginal of each variable of the SPN
+	 * @see #getMarginal(String)
+	 */
+	public Map<String, Distribution<V>> getMarginals() {
+		Map<String, Distribution<V>> marginals = new LinkedHashMap<String, Distribution<V>>();
+		for (String var: indicatorSums.keySet()) {
+			marginals.put(var, getMarginal(var));
+		}
+		return marginals;
+	}
+
+	public String toString() {
+		return "Derivatives for " + evidence + ": " + getMarginals();
+	}
+
+}
@@ -1,8 +1,13 @@
 package com.tr.sptools.spn;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.xml.transform.Transformer;
@@ -20,6 +25,20 @@ public abstract class SPNElement<V> implements AbstractDistribution<V> {
 
 	/** The semiring in use for calculations */
 	private final SemiRing<V> semiRing;
+
+	/** Nodes that have this element as a child (null if there are none) */
+	private List<SPNElement<V>> parents;
+
+	/** Compiled form of the SPN rooted at this element (null if not compiled, or invalidated) */
+	private CompiledSPN<V> compiled;
+
+	/**
+	 * Compiled form of an SPN that contains this element, e.g. of an
+	 * ancestor that was compiled before (null if there is none, or if it
+	 * was invalidated). Properties of the nodes below this element are read
+	 * from its arrays, so checking every node of an SPN compiles it once.
+	 */
+	private CompiledSPN<V> containing;
 	
 	/**
 	 * Construct the element using the given semiring
@@ -30,8 +49,40 @@ public abstract class SPNElement<V> implements AbstractDistribution<V> {
 	
 	/**
 	 * Return weight (e.g. probabiltiy or rank) of given configuration.
+	 * Variables not assigned by the configuration are summed out.
 	 */
 	public abstract V getWeight(Configuration config);
+
+	/**
+	 * Return weight of given configuration, evaluating every distinct node
+	 * below this element exactly once. Nodes shared by several parents are
+	 * looked up in the cache, which is keyed by node identity.
+	 */
+	public V getWeightMemoised(Configuration config) {
+		return getWeight(config, new IdentityHashMap<SPNElement<V>, V>());
+	}
+
+	/**
+	 * Return weight of given configuration, using (and filling) the given 
+	 * cache of weights of already evaluated nodes.
+	 * 
+	 * @param config Configuration to evaluate
+	 * @param cache Weights of already evaluated nodes, keyed by node identity
+	 */
+	public V getWeight(Configuration config, Map<SPNElement<V>, V> cache) {
+		V v = cache.get(this);
+		if (v == null) {
+			v = computeWeight(config, cache);
+			cache.put(this, v);
+		}
+		return v;
+	}
+
+	/**
+	 * Compute weight of this node, obtaining weights of children through
+	 * {@link #getWeight(Configuration, Map)} with the given cache.
+	 */
+	protected abstract V computeWeight(Configuration config, Map<SPNElement<V>, V> cache);
 	
 	/** 
 	 * @return True iff all children of sum node cover the same set of variables
@@ -39,19 +90,23 @@ public abstract class SPNElement<V> implements AbstractDistribution<V> {
 	public abstract boolean isComplete();
 
 	/** 
-	 * @return True iff no variable appear negated and non-negated in different children of the same product node
+	 * @return True iff no variable takes different values in different children of the same product node
 	 */
 	public abstract boolean isConsistent();
 	
 	/**
-	 * @return List of variables below this node, with duplicates if a variable appears more than once
+	 * @return List of the distinct variables below this node
 	 */
-	public abstract List<String> getVariablesCovered();
+	public List<String> getVariablesCovered() {
+		return new ArrayList<String>(getContainingForm().getScope(this));
+	}
 		
 	/**
-	 * @return List of indicators below this node, with duplicates if an indicator appears more than once
+	 * @return List of the distinct indicator nodes below this node
 	 */
-	public abstract List<SPNIndicator<V>> getIndicatorsCovered();
+	public List<SPNIndicator<V>> getIndicatorsCovered() {
+		return getContainingForm().getIndicators(this);
+	}
 
 	/**
 	 * @return Semiring used by this element
@@ -62,11 +117,118 @@ public abstract class SPNElement<V> implements AbstractDistribution<V> {
 	
 	public abstract <V2> SPNElement<V2> convert(SPNTransformer<V, V2> trans);
 
+	/**
+	 * Return the flattened form of the SPN rooted at this element, for fast
+	 * evaluation. The compiled form is kept until a node is added to this
+	 * element or to a node below it.
+	 * 
+	 * @return Flattened form of the SPN rooted at this element
+	 */
+	public synchronized CompiledSPN<V> compile() {
+		if (compiled == null) {
+			compiled = compileAndShare();
+		}
+		return compiled;
+	}
+
+	/**
+	 * @return Compiled form of an SPN containing this element, compiling the
+	 * SPN rooted at this element if there is none
+	 */
+	protected CompiledSPN<V> getContainingForm() {
+		CompiledSPN<V> form = containing;
+		return form != null? form: compileAndShare();
+	}
+
+	/**
+	 * Compile the SPN rooted at this element and make it the containing
+	 * form of all nodes in it.
+	 */
+	private CompiledSPN<V> compileAndShare() {
+		CompiledSPN<V> form = CompiledSPN.compile(this);
+		for (SPNElement<V> e: form.getNodes()) {
+			e.containing = form;
+		}
+		return form;
+	}
+
+	/**
+	 * Register the given node as a parent of this element, so that changes
+	 * below this element invalidate the compiled forms of the parent.
+	 */
+	protected void addParent(SPNElement<V> parent) {
+		if (parents == null) {
+			parents = new ArrayList<SPNElement<V>>(1);
+		}
+		for (SPNElement<V> p: parents) {
+			if (p == parent) return;
+		}
+		parents.add(parent);
+	}
+
+	/**
+	 * Invalidate the compiled forms of this element and of all its
+	 * ancestors, to be called when the children of this element change.
+	 * Ancestors of a node without compiled forms have none either, so the
+	 * walk stops there.
+	 */
+	protected void modified() {
+		Deque<SPNElement<V>> todo = new ArrayDeque<SPNElement<V>>();
+		todo.push(this);
+		while (!todo.isEmpty()) {
+			SPNElement<V> e = todo.pop();
+			if (e != this && e.compiled == null && e.containing == null) continue;
+			synchronized (e) {
+				e.compiled = null;
+				e.containing = null;
+			}
+			if (e.parents != null) {
+				for (SPNElement<V> p: e.parents) todo.push(p);
+			}
+		}
+	}
+
+	/**
+	 * Return weights of many configurations at once. The SPN is compiled
+	 * once and each node is evaluated over a batch of configurations.
+	 * 
+	 * @param configs Configurations to evaluate
+	 * @return Weight of each configuration, in the same order
+	 */
+	public List<V> getWeights(List<Configuration> configs) {
+		return compile().getWeights(configs);
+	}
+
+	/**
+	 * Return the values and derivatives of all nodes below this element for
+	 * the given evidence, including the marginals of all variables.
+	 *
+	 * @see CompiledSPN#getDerivatives(Configuration)
+	 */
+	public SPNDerivatives<V> getDerivatives(Configuration evidence) {
+		return compile().getDerivatives(evidence);
+	}
+
+	/**
+	 * Return a most probable explanation of the given evidence.
+	 *
+	 * @see CompiledSPN#getMostProbableExplanation(Configuration)
+	 */
+	public Configuration getMostProbableExplanation(Configuration evidence) {
+		return compile().getMostProbableExplanation(evidence);
+	}
+
+	/**
+	 * @return Sum weight of set of configurations
+	 */
+	@Override
+	public V getWeight(Collection<Configuration> cfgs) {
+		return compile().getWeight(cfgs);
+	}
+
 	@Override
 	public Collection<String> getVariables() {
-		Set<String> vars = new LinkedHashSet<String>();
-		vars.addAll(getVariablesCovered());
-		return vars;
+		return getContainingForm().getScope(this);
 	}
 	
 	public abstract String toString();
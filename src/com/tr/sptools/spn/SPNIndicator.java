@@ -2,6 +2,7 @@ package com.tr.sptools.spn;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import com.tr.sptools.base.Configuration;
 import com.tr.sptools.semiring.SemiRing;
@@ -9,15 +10,25 @@ import com.tr.sptools.semiring.SemiRing;
 /**
  * An indicator is a variable plus a value that the variable can take.
  * 
+ * Values are integer-coded as in {@link Configuration}; for binary
+ * variables false is 0 and true is 1.
+ * 
  * @param <V>
  */
 public class SPNIndicator<V> extends SPNElement<V> {
 
 	private final String var;	
-	private boolean value;
+	private final int value;
 	
 	public SPNIndicator(SemiRing<V> semiRing, String var, boolean value) {
+		this(semiRing, var, value? 1: 0);
+	}
+	
+	public SPNIndicator(SemiRing<V> semiRing, String var, int value) {
 		super(semiRing);
+		if (value < 0) {
+			throw new IllegalArgumentException("Negative value " + value + " for variable " + var);
+		}
 		this.var = var;
 		this.value = value;
 	}
@@ -30,21 +41,42 @@ public class SPNIndicator<V> extends SPNElement<V> {
 	}
 	
 	/**
-	 * @return The value of this indicator
+	 * @return The value of this indicator, which must be binary
 	 */
 	public boolean getValue() {
+		if (value > 1) {
+			throw new IllegalStateException("Indicator " + this + " is not binary");
+		}
+		return value == 1;
+	}
+
+	/**
+	 * @return The integer-coded value of this indicator
+	 */
+	public int getIntValue() {
 		return value;
 	}
 
+	/**
+	 * Return one() if the configuration assigns the value of this indicator
+	 * or does not assign its variable, zero() otherwise. Leaving variables
+	 * out of the configuration thereby sums them out of complete and
+	 * consistent SPNs.
+	 */
 	public V getWeight(Configuration config) {
-		if (!config.getVariables().contains(var)) {
-			throw new IllegalArgumentException("Illegal variable, config " + config + " should contain variable " + var);
+		if (!config.hasVariable(var)) {
+			return getSemiRing().one();
 		}
-		return config.getValue(var) == value? getSemiRing().one(): getSemiRing().zero();
+		return config.getIntValue(var) == value? getSemiRing().one(): getSemiRing().zero();
+	}
+
+	@Override
+	protected V computeWeight(Configuration config, Map<SPNElement<V>, V> cache) {
+		return getWeight(config);
 	}
 	
 	public String toString() {
-		return "I["+var+"="+(value?"T":"F")+"]";
+		return "I["+var+"="+(value == 0? "F": value == 1? "T": String.valueOf(value))+"]";
 	}
 
 	@Override
@@ -3,7 +3,7 @@ package com.tr.sptools.spn;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
 
 import com.tr.sptools.base.Configuration;
 import com.tr.sptools.semiring.SemiRing;
@@ -19,17 +19,27 @@ public class SPNProductNode<V> extends SPNElement<V> {
 	public SPNProductNode(SemiRing<V> ops, List<SPNElement<V>> subs) {
 		super(ops);
 		this.subs.addAll(subs);
+		for (SPNElement<V> e: subs) {
+			e.addParent(this);
+		}
 	}
 
 	public void add(SPNElement<V> e) {
 		subs.add(e);
+		e.addParent(this);
+		modified();
 	}
 
 	@Override
 	public V getWeight(Configuration config) {
+		return getWeightMemoised(config);
+	}
+
+	@Override
+	protected V computeWeight(Configuration config, Map<SPNElement<V>, V> cache) {
 		V res = getSemiRing().one();
 		for (SPNElement<V> e: subs) {
-			V v = e.getWeight(config);
+			V v = e.getWeight(config, cache);
 			if (v.equals(getSemiRing().zero())) return getSemiRing().zero();
 			res = getSemiRing().product(res, v);
 		}
@@ -46,56 +56,22 @@ public class SPNProductNode<V> extends SPNElement<V> {
 		return res.substring(0, res.length()-1) + ")";
 	}
 	
-	@Override
-	public List<String> getVariablesCovered() {
-		return subs.stream()
-				.map(e -> e.getVariablesCovered())
-				.flatMap(l -> l.stream())
-				.collect(Collectors.toList());
-	}
-
 	@Override
 	public boolean isComplete() {
-		for (SPNElement<V> e: subs) {
-			if (!e.isComplete()) return false;
-		}
-		return true;
+		return getContainingForm().isComplete(this);
 	}
 
 	@Override
 	public boolean isConsistent() {
-		for (SPNElement<V> e1: subs) {
-			for (SPNElement<V> e2: subs) {
-				if (e1 != e2) {
-					for (SPNIndicator<V> i1: e1.getIndicatorsCovered()) {
-						for (SPNIndicator<V> i2: e2.getIndicatorsCovered()) {
-							if (i1.getVariable().equals(i2.getVariable()) &&
-									i1.getValue() != i2.getValue()) {
-								return false;
-							}
-						}
-					}
-
-				}
-			}
-		}
-		return true;		
+		return getContainingForm().isConsistent(this);
 	}
 
-	@Override
-	public List<SPNIndicator<V>> getIndicatorsCovered() {
-		return subs.stream()
-				.map(e -> e.getIndicatorsCovered())
-				.flatMap(l -> l.stream())
-				.collect(Collectors.toList());
-	}
-	
 	@Override
 	public <V2> SPNElement<V2> convert(SPNTransformer<V, V2> trans) {
 		return trans.transformProduct(this);
 	}
 
 	public List<SPNElement<V>> getSubs() {
-		return subs;
+		return Collections.unmodifiableList(subs);
 	}
 }
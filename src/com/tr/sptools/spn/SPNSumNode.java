@@ -6,7 +6,6 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 import com.tr.sptools.base.Configuration;
 import com.tr.sptools.semiring.SemiRing;
@@ -21,6 +20,8 @@ public class SPNSumNode<V> extends SPNElement<V> {
 
 	public void add(SPNElement<V> e, V weight) {
 		subs.put(e, weight);
+		e.addParent(this);
+		modified();
 	}
 
 	public V getWeight(SPNElement<V> e) {
@@ -29,12 +30,17 @@ public class SPNSumNode<V> extends SPNElement<V> {
 	
 	@Override
 	public V getWeight(Configuration config) {
+		return getWeightMemoised(config);
+	}
+
+	@Override
+	protected V computeWeight(Configuration config, Map<SPNElement<V>, V> cache) {
 		if (!isNormalized()) {
 			System.err.println("Warning: unnormalized sum node");
 		}
 		V res = getSemiRing().zero();
-		for (SPNElement<V> e: subs.keySet()) {
-			res = getSemiRing().sum(res, getSemiRing().product(subs.get(e), e.getWeight(config)));
+		for (Map.Entry<SPNElement<V>, V> e: subs.entrySet()) {
+			res = getSemiRing().sum(res, getSemiRing().product(e.getValue(), e.getKey().getWeight(config, cache)));
 		}
 		return res;
 	}
@@ -59,49 +65,21 @@ public class SPNSumNode<V> extends SPNElement<V> {
 
 	@Override
 	public boolean isComplete() {
-		List<Set<String>> childVars = new ArrayList<Set<String>>();
-		for (SPNElement<V> e: subs.keySet()) {
-			if (!e.isComplete()) return false;
-			childVars.add(e.getVariablesCovered().stream().collect(Collectors.toSet()));
-		}
-		for (Set<String> s1: childVars) {
-			for (Set<String> s2: childVars) {
-				if (!s1.equals(s2)) return false;
-			}
-		}
-		return true;
+		return getContainingForm().isComplete(this);
 	}
 
 	@Override
 	public boolean isConsistent() {
-		for (SPNElement<V> e: subs.keySet()) {
-			if (!e.isConsistent()) return false;
-		}
-		return true;
+		return getContainingForm().isConsistent(this);
 	}
 
-	public List<String> getVariablesCovered() {
-		return subs.keySet().stream()
-				.map(e -> e.getVariablesCovered())
-				.flatMap(l -> l.stream())
-				.collect(Collectors.toList());
-	}
-
-	@Override
-	public List<SPNIndicator<V>> getIndicatorsCovered() {
-		return subs.keySet().stream()
-				.map(e -> e.getIndicatorsCovered())
-				.flatMap(l -> l.stream())
-				.collect(Collectors.toList());
-	}
-	
 	@Override
 	public <V2> SPNElement<V2> convert(SPNTransformer<V, V2> trans) {
 		return trans.transformSum(this);
 	}
 
 	public Set<SPNElement<V>> getSubs() {
-		return subs.keySet();
+		return Collections.unmodifiableSet(subs.keySet());
 	}
 	
 	
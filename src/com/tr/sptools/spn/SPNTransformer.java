@@ -32,7 +32,7 @@ public abstract class SPNTransformer<V, V2> {
 	 * performs no changes except for resetting the semiring.
 	 */
 	public SPNIndicator<V2> transformIndicator(SPNIndicator<V> i) {
-		return new SPNIndicator<V2>(sr, i.getVariable(), i.getValue());
+		return new SPNIndicator<V2>(sr, i.getVariable(), i.getIntValue());
 	}
 	
 	/**
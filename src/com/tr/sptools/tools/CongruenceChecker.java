@@ -0,0 +1,235 @@
+package com.tr.sptools.tools;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.tr.sptools.base.AbstractDistribution;
+import com.tr.sptools.base.BaseTools;
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.DenseDistribution;
+import com.tr.sptools.semiring.DoubleSemiRing;
+import com.tr.sptools.semiring.LogProbSemiRing;
+import com.tr.sptools.semiring.ProbSemiRing;
+
+/**
+ * Checks congruence of a probability distribution and a ranking function
+ * (definition 1 in "On Transformations between Probability and Spohnian
+ * Disbelief Functions" by Giang and Shenoy, 1999): for all events A and B,
+ * P(A) >= P(B) must imply k(A) <= k(B).
+ *
+ * Congruence is decided without enumerating events. If it fails for some
+ * A and B, it also fails for B = {w}, where w is a least probable world of
+ * rank k(B), and A = all worlds of rank above k(B). So the distributions
+ * are congruent iff for every finite rank r, the mass of the worlds ranked
+ * above r is less than the probability of every world of rank r.
+ *
+ * Worlds are added one at a time, so only the total mass and the least
+ * probable world of each rank are kept in memory.
+ *
+ * The probabilities may also be log probabilities ({@link LogProbSemiRing}),
+ * in which case the masses are accumulated in log space.
+ */
+public class CongruenceChecker {
+
+	/**
+	 * Events A and B with P(A) >= P(B) but k(A) > k(B). B holds a single
+	 * world, A holds all worlds ranked above that world. Probabilities are
+	 * log probabilities if the checker works in log space.
+	 */
+	public static class Counterexample {
+		private final Configuration world;
+		private final double worldProbability;
+		private final int worldRank;
+		private final double eventProbability;
+		private final int eventRank;
+
+		Counterexample(Configuration world, double worldProbability, int worldRank, double eventProbability, int eventRank) {
+			this.world = world;
+			this.worldProbability = worldProbability;
+			this.worldRank = worldRank;
+			this.eventProbability = eventProbability;
+			this.eventRank = eventRank;
+		}
+
+		/** @return The world of event B */
+		public Configuration getWorld() {
+			return world;
+		}
+
+		/** @return P(B) */
+		public double getWorldProbability() {
+			return worldProbability;
+		}
+
+		/** @return k(B); event A holds all worlds ranked above it */
+		public int getWorldRank() {
+			return worldRank;
+		}
+
+		/** @return P(A) */
+		public double getEventProbability() {
+			return eventProbability;
+		}
+
+		/** @return k(A), or Integer.MAX_VALUE (infinity) if A is empty */
+		public int getEventRank() {
+			return eventRank;
+		}
+
+		public String toString() {
+			return "A: worlds with rank > " + worldRank + ", B: {" + world + "}, "
+					+ "P(A) = " + eventProbability + ", P(B) = " + worldProbability + ", "
+					+ "k(A) = " + eventRank + ", k(B) = " + worldRank;
+		}
+	}
+
+	/** Worlds of the same rank */
+	private static class RankClass {
+		double mass;
+		double minProbability = Double.POSITIVE_INFINITY;
+		Configuration world;
+		int index;
+	}
+
+	private final Map<Integer, RankClass> classes = new TreeMap<Integer, RankClass>();
+
+	/** Semiring used to accumulate masses (log space or not) */
+	private final DoubleSemiRing<Double> semiRing;
+
+	/** Distribution to read the worlds added by index from */
+	private DenseDistribution<?> dense;
+
+	/**
+	 * Create a checker for probabilities.
+	 */
+	public CongruenceChecker() {
+		this(false);
+	}
+
+	/**
+	 * Create a checker for probabilities, or for log probabilities if log is true.
+	 */
+	public CongruenceChecker(boolean log) {
+		this.semiRing = log? LogProbSemiRing.getInstance(): ProbSemiRing.getInstance();
+	}
+
+	/**
+	 * Add a world of the distributions.
+	 *
+	 * @param world Total configuration, which is copied if it is kept
+	 * @param probability Probability (or log probability) of the world
+	 * @param rank Rank of the world
+	 */
+	public void add(Configuration world, double probability, int rank) {
+		RankClass c = getRankClass(probability, rank);
+		if (c != null) {
+			c.world = world.copy();
+		}
+	}
+
+	/**
+	 * @return Class of the given rank with the probability added, if this
+	 * is its new least probable world (null otherwise)
+	 */
+	private RankClass getRankClass(double probability, int rank) {
+		RankClass c = classes.get(rank);
+		if (c == null) {
+			c = new RankClass();
+			c.mass = semiRing.zeroDouble();
+			classes.put(rank, c);
+		}
+		c.mass = semiRing.sumDouble(c.mass, probability);
+		if (probability < c.minProbability) {
+			c.minProbability = probability;
+			return c;
+		}
+		return null;
+	}
+
+	/**
+	 * @return A counterexample to congruence of the worlds added so far, or null if they are congruent
+	 */
+	public Counterexample getCounterexample() {
+		List<Integer> ranks = new ArrayList<Integer>(classes.keySet());
+		double above = semiRing.zeroDouble();
+		for (int i = ranks.size() - 1; i >= 0; i--) {
+			int rank = ranks.get(i);
+			RankClass c = classes.get(rank);
+			if (rank != Integer.MAX_VALUE && above >= c.minProbability) {
+				Configuration world = c.world != null? c.world: dense.getConfiguration(c.index);
+				int eventRank = i + 1 < ranks.size()? ranks.get(i + 1): Integer.MAX_VALUE;
+				return new Counterexample(world, c.minProbability, rank, above, eventRank);
+			}
+			above = semiRing.sumDouble(above, c.mass);
+		}
+		return null;
+	}
+
+	/**
+	 * @return True iff the worlds added so far are congruent
+	 */
+	public boolean isCongruent() {
+		return getCounterexample() == null;
+	}
+
+	/**
+	 * Check congruence of given probability and ranking functions, by
+	 * enumerating all total configurations of their variables. Dense
+	 * functions are checked by {@link #check(DenseDistribution, DenseDistribution)}.
+	 *
+	 * @return A counterexample, or null if the functions are congruent
+	 */
+	public static Counterexample check(AbstractDistribution<Double> pf, AbstractDistribution<Integer> rf) {
+		if (pf instanceof DenseDistribution && rf instanceof DenseDistribution) {
+			return check((DenseDistribution<Double>)pf, (DenseDistribution<Integer>)rf);
+		}
+		if (!new HashSet<String>(pf.getVariables()).equals(new HashSet<String>(rf.getVariables()))) {
+			throw new IllegalArgumentException("Distributions must be over same set variables");
+		}
+		CongruenceChecker checker = new CongruenceChecker(pf.getSemiRing() instanceof LogProbSemiRing);
+		for (Configuration c: BaseTools.iterateAllTotalConfigs(pf.getVariables())) {
+			checker.add(c, pf.getWeight(c), rf.getWeight(c));
+		}
+		return checker.getCounterexample();
+	}
+
+	/**
+	 * Check congruence of given dense probability and ranking functions.
+	 *
+	 * @return A counterexample, or null if the functions are congruent
+	 */
+	public static Counterexample check(DenseDistribution<Double> pf, DenseDistribution<Integer> rf) {
+		List<String> vars = pf.getVariables();
+		if (!new HashSet<String>(vars).equals(new HashSet<String>(rf.getVariables()))) {
+			throw new IllegalArgumentException("Distributions must be over same set variables");
+		}
+		// Bit of each variable in the index of rf
+		int[] bits = new int[vars.size()];
+		boolean sameOrder = true;
+		for (int k = 0; k < vars.size(); k++) {
+			int pos = rf.getVariables().indexOf(vars.get(k));
+			bits[k] = 1 << pos;
+			sameOrder &= pos == k;
+		}
+		CongruenceChecker checker = new CongruenceChecker(pf.getSemiRing() instanceof LogProbSemiRing);
+		checker.dense = pf;
+		for (int i = 0; i < pf.size(); i++) {
+			int j = i;
+			if (!sameOrder) {
+				j = 0;
+				for (int k = 0; k < bits.length; k++) {
+					if ((i & (1 << k)) != 0) j |= bits[k];
+				}
+			}
+			RankClass c = checker.getRankClass(pf.getDouble(i), rf.getInt(j));
+			if (c != null) {
+				c.index = i;
+			}
+		}
+		return checker.getCounterexample();
+	}
+
+}
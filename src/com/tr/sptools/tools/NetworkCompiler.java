@@ -0,0 +1,197 @@
+package com.tr.sptools.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.tr.sptools.base.Configuration;
+import com.tr.sptools.network.CWT;
+import com.tr.sptools.network.Network;
+import com.tr.sptools.semiring.SemiRing;
+import com.tr.sptools.spn.SPNElement;
+import com.tr.sptools.spn.SPNIndicator;
+import com.tr.sptools.spn.SPNProductNode;
+import com.tr.sptools.spn.SPNSumNode;
+
+/**
+ * Compiles a network into an equivalent SPN (arithmetic circuit).
+ *
+ * The network polynomial is factorised by eliminating the variables in
+ * reverse topological order. When a variable X with parents U is eliminated,
+ * all factors mentioning X stem from its descendants, so for every
+ * configuration u of the remaining variables the factor entry becomes a sum
+ * node with the weights of the CWT row of X given u:
+ *
+ *   sum_x w(x|u) * (I[X=x] * f_1(x, ..) * ... * f_k(x, ..))
+ *
+ * The resulting SPN is complete and decomposable, its sum node weights are
+ * exactly the CWT entries (so it is normalized if the network is), and
+ * nodes with identical children are shared. The size of the SPN is
+ * exponential only in the width of the elimination order.
+ */
+public class NetworkCompiler<V> {
+
+	private final SemiRing<V> semiRing;
+
+	/** Indicators per variable, indexed by value */
+	private final Map<String, List<SPNIndicator<V>>> indicators = new HashMap<String, List<SPNIndicator<V>>>();
+
+	/** Nodes created so far, keyed by their children (and weights) */
+	private final Map<List<Object>, SPNElement<V>> cache = new HashMap<List<Object>, SPNElement<V>>();
+
+	/**
+	 * Table of SPN nodes over a set of variables, indexed by a configuration
+	 * in mixed radix (value * stride summed over the variables).
+	 */
+	private static class Table<V> {
+		final List<String> vars;
+		final int[] strides;
+		final List<SPNElement<V>> entries;
+
+		Table(List<String> vars, int[] strides, List<SPNElement<V>> entries) {
+			this.vars = vars;
+			this.strides = strides;
+			this.entries = entries;
+		}
+
+		SPNElement<V> get(Configuration config) {
+			int index = 0;
+			for (int k = 0; k < vars.size(); k++) {
+				index += config.getIntValue(vars.get(k)) * strides[k];
+			}
+			return entries.get(index);
+		}
+	}
+
+	private NetworkCompiler(SemiRing<V> semiRing) {
+		this.semiRing = semiRing;
+	}
+
+	/**
+	 * Compile the given network into an SPN.
+	 *
+	 * @param network Network to compile
+	 * @return Root of an SPN over the variables of the network, assigning every configuration the same weight as the network
+	 */
+	public static <V> SPNElement<V> compile(Network<V> network) {
+		return new NetworkCompiler<V>(network.getSemiRing()).compileNetwork(network);
+	}
+
+	private SPNElement<V> compileNetwork(Network<V> network) {
+		List<String> order = new ArrayList<String>(network.getTopologicalOrder());
+		Collections.reverse(order);
+
+		List<Table<V>> tables = new ArrayList<Table<V>>();
+		for (String var: order) {
+			CWT<V> cpt = network.getCPT(var);
+
+			// Factors that mention var
+			List<Table<V>> bucket = new ArrayList<Table<V>>();
+			List<Table<V>> rest = new ArrayList<Table<V>>();
+			for (Table<V> t: tables) {
+				(t.vars.contains(var)? bucket: rest).add(t);
+			}
+
+			// Variables of the new factor: parents of var plus those of the bucket
+			Set<String> scope = new LinkedHashSet<String>(cpt.getParents());
+			for (Table<V> t: bucket) {
+				scope.addAll(t.vars);
+			}
+			scope.remove(var);
+			List<String> vars = new ArrayList<String>(scope);
+			int[] strides = new int[vars.size()];
+			long count = 1;
+			for (int k = 0; k < vars.size(); k++) {
+				strides[k] = (int)count;
+				count *= network.getDomainSize(vars.get(k));
+				if (count > 1 << 30) {
+					throw new IllegalArgumentException("Network too wide to compile");
+				}
+			}
+
+			List<SPNElement<V>> entries = new ArrayList<SPNElement<V>>();
+			for (int i = 0; i < count; i++) {
+				Configuration config = new Configuration();
+				for (int k = 0; k < vars.size(); k++) {
+					config.putValue(vars.get(k), i / strides[k] % network.getDomainSize(vars.get(k)));
+				}
+				Configuration parentConfig = config.restrict(cpt.getParents());
+				List<SPNElement<V>> subs = new ArrayList<SPNElement<V>>();
+				List<V> weights = new ArrayList<V>();
+				for (int value = network.getDomainSize(var) - 1; value >= 0; value--) {
+					Configuration c = config.append(var, value);
+					List<SPNElement<V>> factors = new ArrayList<SPNElement<V>>();
+					factors.add(getIndicator(var, value, network.getDomainSize(var)));
+					for (Table<V> t: bucket) {
+						factors.add(t.get(c));
+					}
+					subs.add(product(factors));
+					weights.add(cpt.getWeight(value, parentConfig));
+				}
+				entries.add(sum(subs, weights));
+			}
+			rest.add(new Table<V>(vars, strides, entries));
+			tables = rest;
+		}
+
+		// All variables are eliminated, every table has a single entry
+		List<SPNElement<V>> roots = new ArrayList<SPNElement<V>>();
+		for (Table<V> t: tables) {
+			roots.add(t.entries.get(0));
+		}
+		return product(roots);
+	}
+
+	private SPNIndicator<V> getIndicator(String var, int value, int size) {
+		List<SPNIndicator<V>> l = indicators.get(var);
+		if (l == null) {
+			l = new ArrayList<SPNIndicator<V>>();
+			for (int v = 0; v < size; v++) {
+				l.add(new SPNIndicator<V>(semiRing, var, v));
+			}
+			indicators.put(var, l);
+		}
+		return l.get(value);
+	}
+
+	/**
+	 * @return Product node over the given nodes (or the node itself if there is only one)
+	 */
+	private SPNElement<V> product(List<SPNElement<V>> factors) {
+		if (factors.size() == 1) {
+			return factors.get(0);
+		}
+		List<Object> key = new ArrayList<Object>(factors);
+		key.add(0, SPNProductNode.class);
+		SPNElement<V> e = cache.get(key);
+		if (e == null) {
+			e = new SPNProductNode<V>(semiRing, factors);
+			cache.put(key, e);
+		}
+		return e;
+	}
+
+	/**
+	 * @return Sum node over the given nodes with the given weights
+	 */
+	private SPNElement<V> sum(List<SPNElement<V>> subs, List<V> weights) {
+		List<Object> key = new ArrayList<Object>(subs);
+		key.add(0, SPNSumNode.class);
+		key.addAll(weights);
+		SPNElement<V> e = cache.get(key);
+		if (e == null) {
+			SPNSumNode<V> s = new SPNSumNode<V>(semiRing);
+			for (int k = 0; k < subs.size(); k++) {
+				s.add(subs.get(k), weights.get(k));
+			}
+			cache.put(key, s);
+			e = s;
+		}
+		return e;
+	}
+
+}
@@ -3,10 +3,13 @@ package com.tr.sptools.tools;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 import com.tr.sptools.base.Configuration;
+import com.tr.sptools.semiring.LogProbSemiRing;
 import com.tr.sptools.semiring.ProbSemiRing;
 import com.tr.sptools.semiring.RankSemiRing;
 import com.tr.sptools.spn.SPNElement;
@@ -17,7 +20,7 @@ import com.tr.sptools.spn.SPNTransformer;
 /**
  * Transforms probability SPN to ranking SPN.
  * 
- * 
+ * The input SPN may also use log probabilities ({@link LogProbSemiRing}).
  */
 public class PR_SPNTransformer extends SPNTransformer<Double, Integer> {
 	
@@ -37,13 +40,20 @@ public class PR_SPNTransformer extends SPNTransformer<Double, Integer> {
 	@Override
 	public SPNSumNode<Integer> transformSum(SPNSumNode<Double> sum) {
 		
+		// Probability of each child (sum weights are log probabilities in log space)
+		boolean log = sum.getSemiRing() instanceof LogProbSemiRing;
+		Map<SPNElement<Double>, Double> weights = new HashMap<SPNElement<Double>, Double>();
+		for (SPNElement<Double> el: sum.getSubs()) {
+			weights.put(el, log? LogProbSemiRing.toProbability(sum.getWeight(el)): sum.getWeight(el));
+		}
+
 		// Sort children from highest probabiltiy to lowest probabilty
 		List<SPNElement<Double>> subs = new ArrayList<SPNElement<Double>>();
 		subs.addAll(sum.getSubs());
 		Collections.sort(subs, new Comparator<SPNElement<Double>>() {
 			@Override
 			public int compare(SPNElement<Double> o1, SPNElement<Double> o2) {
-				return -Double.compare(sum.getWeight(o1), sum.getWeight(o2));
+				return -Double.compare(weights.get(o1), weights.get(o2));
 			}
 		});
 
@@ -55,8 +65,8 @@ public class PR_SPNTransformer extends SPNTransformer<Double, Integer> {
 		Double m = ProbSemiRing.getInstance().one();
 		for (SPNElement<Double> el: subs) {
 			s.add(el.convert(this), r);
-			m = m - sum.getWeight(el);
-			if (sum.getWeight(el) > m) r++;
+			m = m - weights.get(el);
+			if (weights.get(el) > m) r++;
 		}
 		
 		return s;
@@ -1,16 +1,18 @@
 package com.tr.sptools.tools;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.LinkedHashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
 
 import com.tr.sptools.base.AbstractDistribution;
-import com.tr.sptools.base.BaseTools;
 import com.tr.sptools.base.Configuration;
+import com.tr.sptools.base.DenseDistribution;
 import com.tr.sptools.base.Distribution;
+import com.tr.sptools.base.SparseDistribution;
+import com.tr.sptools.semiring.LogProbSemiRing;
 import com.tr.sptools.semiring.ProbSemiRing;
 import com.tr.sptools.semiring.RankSemiRing;
 
@@ -20,37 +22,216 @@ public class ProbToRank {
 	 * Convert probability distribution to ranking function.
 	 * 
 	 * Implements procedure described in "On Transformations between Probability 
-	 * and Spohnian Disbelief Functions" by Giang and Shenoy (1999).
+	 * and Spohnian Disbelief Functions" by Giang and Shenoy (1999): worlds
+	 * are visited from most to least probable, and the rank increases after
+	 * a world that is more probable than all remaining worlds together.
+	 * Worlds with equal probability get the same rank, and worlds with
+	 * probability zero get rank infinity.
+	 * 
+	 * The distribution may also hold log probabilities ({@link LogProbSemiRing}),
+	 * in which case the procedure is carried out in log space.
 	 *  
 	 * @param dist Probability distribution to convert
 	 * @return Ranking function
 	 */
 	public static Distribution<Integer> convert(Distribution<Double> dist) {
+		List<Configuration> configs = new ArrayList<Configuration>(dist.getConfigurations());
+		double[] probabilities = new double[configs.size()];
+		for (int i = 0; i < probabilities.length; i++) {
+			probabilities[i] = dist.getWeight(configs.get(i));
+		}
+		boolean log = dist.getSemiRing() instanceof LogProbSemiRing;
+		double[] thresholds = getThresholds(probabilities, log, Double.NEGATIVE_INFINITY);
+
+		Distribution<Integer> dist2 = new Distribution<Integer>(RankSemiRing.getInstance(), dist.getVariables());
+		for (int i = 0; i < probabilities.length; i++) {
+			dist2.set(configs.get(i), getRank(probabilities[i], thresholds, log));
+		}
+		return dist2;
+	}
+
+	/**
+	 * Convert dense probability distribution to ranking function.
+	 * 
+	 * The probabilities are copied to a primitive array and sorted with a
+	 * parallel sort, after which the ranks are written in parallel.
+	 * 
+	 * @see #convert(Distribution)
+	 * @param dist Probability distribution to convert
+	 * @return Ranking function over the same variables, in the same order
+	 */
+	public static DenseDistribution<Integer> convert(DenseDistribution<Double> dist) {
+		double[] probabilities = new double[dist.size()];
+		for (int i = 0; i < probabilities.length; i++) {
+			probabilities[i] = dist.getDouble(i);
+		}
+		boolean log = dist.getSemiRing() instanceof LogProbSemiRing;
+		double[] thresholds = getThresholds(probabilities, log, Double.NEGATIVE_INFINITY);
+
+		DenseDistribution<Integer> dist2 = new DenseDistribution<Integer>(RankSemiRing.getInstance(), dist.getVariables());
+		IntStream.range(0, probabilities.length).parallel()
+				.forEach(i -> dist2.setInt(i, getRank(probabilities[i], thresholds, log)));
+		return dist2;
+	}
 
-		// Sort worlds according to probability
-		List<Configuration> configs = new ArrayList<Configuration>();
-		configs.addAll(dist.getConfigurations());
-		Collections.sort(configs, new Comparator<Configuration>() {
-			@Override
-			public int compare(Configuration c1, Configuration c2) {
-				return Double.compare(dist.getWeight(c1), dist.getWeight(c2));
+	/**
+	 * Rank only the k most probable worlds of a dense probability distribution.
+	 * 
+	 * The k worlds are selected with a heap of size k (ties are broken
+	 * in favour of the lower index), so no full sort is needed. Their ranks
+	 * are the same as those assigned by {@link #convert(DenseDistribution)}.
+	 * 
+	 * @param dist Probability distribution to convert
+	 * @param k Number of worlds to rank
+	 * @return Ranks of the k most probable worlds with non-zero probability; 
+	 * other worlds are not stored, and thus read as infinity
+	 * @throws IllegalArgumentException If k is negative
+	 */
+	public static SparseDistribution<Integer> convertTopK(DenseDistribution<Double> dist, int k) {
+		if (k < 0) {
+			throw new IllegalArgumentException("Negative number of worlds " + k);
+		}
+		if (k == 0) {
+			return SparseDistribution.of(RankSemiRing.getInstance(), dist.getVariables(), new TreeMap<Integer, Integer>());
+		}
+		boolean log = dist.getSemiRing() instanceof LogProbSemiRing;
+		double zero = log? Double.NEGATIVE_INFINITY: 0.0;
+
+		// Min-heap of indices, least probable world at the root
+		int[] heap = new int[Math.min(k, dist.size())];
+		int size = 0;
+		for (int i = 0; i < dist.size(); i++) {
+			if (dist.getDouble(i) == zero) continue;
+			if (size < heap.length) {
+				heap[size] = i;
+				siftUp(heap, size++, dist);
+			} else if (isLess(dist, heap[0], i)) {
+				heap[0] = i;
+				siftDown(heap, size, dist);
 			}
-		});
+		}
 
-		// Conversion routine
-		Distribution<Integer> dist2 = new Distribution<Integer>(RankSemiRing.getInstance(), dist.getVariables());
-		int r = 0;
+		// Pop from least to most probable
+		int[] order = new int[size];
+		for (int n = size; n > 0; n--) {
+			order[n - 1] = heap[0];
+			heap[0] = heap[n - 1];
+			siftDown(heap, n - 1, dist);
+		}
+		double[] probabilities = new double[size];
+		for (int n = 0; n < size; n++) {
+			probabilities[n] = dist.getDouble(order[n]);
+		}
+		double rest = Double.NEGATIVE_INFINITY;
+		if (log) {
+			// Mass of the worlds that are not ranked
+			boolean[] ranked = new boolean[dist.size()];
+			for (int n = 0; n < size; n++) {
+				ranked[order[n]] = true;
+			}
+			LogProbSemiRing sr = LogProbSemiRing.getInstance();
+			for (int i = 0; i < dist.size(); i++) {
+				if (!ranked[i]) rest = sr.sumDouble(rest, dist.getDouble(i));
+			}
+		}
+		double[] thresholds = getThresholds(probabilities, log, rest);
+
+		SortedMap<Integer, Integer> ranks = new TreeMap<Integer, Integer>();
+		for (int n = 0; n < size; n++) {
+			ranks.put(order[n], getRank(probabilities[n], thresholds, log));
+		}
+		return SparseDistribution.of(RankSemiRing.getInstance(), dist.getVariables(), ranks);
+	}
+
+	/**
+	 * @return True iff world i is less plausible than world j (less probable, or equally probable with a higher index)
+	 */
+	private static boolean isLess(DenseDistribution<Double> dist, int i, int j) {
+		int c = Double.compare(dist.getDouble(i), dist.getDouble(j));
+		return c < 0 || (c == 0 && i > j);
+	}
+
+	private static void siftUp(int[] heap, int pos, DenseDistribution<Double> dist) {
+		while (pos > 0 && isLess(dist, heap[pos], heap[(pos - 1) / 2])) {
+			swap(heap, pos, (pos - 1) / 2);
+			pos = (pos - 1) / 2;
+		}
+	}
+
+	private static void siftDown(int[] heap, int size, DenseDistribution<Double> dist) {
+		int pos = 0;
+		while (2 * pos + 1 < size) {
+			int c = 2 * pos + 1;
+			if (c + 1 < size && isLess(dist, heap[c + 1], heap[c])) c++;
+			if (!isLess(dist, heap[c], heap[pos])) break;
+			swap(heap, pos, c);
+			pos = c;
+		}
+	}
+
+	private static void swap(int[] heap, int i, int j) {
+		int t = heap[i];
+		heap[i] = heap[j];
+		heap[j] = t;
+	}
+
+	/**
+	 * Run the conversion procedure on the given probabilities (which must
+	 * include the most probable worlds, in any order).
+	 * 
+	 * For log probabilities, the mass remaining after each world is
+	 * accumulated from the least probable world upwards, starting with the
+	 * given mass of the worlds that are not included. This avoids
+	 * subtracting from one, which loses the small remaining masses.
+	 * 
+	 * @return The probabilities of the worlds after which the rank increases, in descending order
+	 */
+	private static double[] getThresholds(double[] probabilities, boolean log, double rest) {
+		double[] sorted = probabilities.clone();
+		Arrays.parallelSort(sorted);
+		double[] thresholds = new double[sorted.length];
+		int n = 0;
+
+		if (log) {
+			LogProbSemiRing sr = LogProbSemiRing.getInstance();
+			double m = rest;
+			for (int i = 0; i < sorted.length; i++) {
+				if (sorted[i] > m) thresholds[n++] = sorted[i];
+				m = sr.sumDouble(m, sorted[i]);
+			}
+			// Collected in ascending order
+			for (int i = 0; i < n / 2; i++) {
+				double t = thresholds[i];
+				thresholds[i] = thresholds[n - 1 - i];
+				thresholds[n - 1 - i] = t;
+			}
+			return Arrays.copyOf(thresholds, n);
+		}
 
 		// m = remaining mass
-		Double m = ProbSemiRing.getInstance().one();
+		double m = ProbSemiRing.getInstance().one();
+		for (int i = sorted.length - 1; i >= 0; i--) {
+			m = m - sorted[i];
+			if (sorted[i] > m) thresholds[n++] = sorted[i];
+		}
+		return Arrays.copyOf(thresholds, n);
+	}
 
-		for (Configuration c: configs) {
-			dist2.set(c, r);
-			m = m - dist.getWeight(c);
-			if (dist.getWeight(c) > m) r++;
+	/**
+	 * @return Rank of a world with the given (log) probability: the number of thresholds above it
+	 */
+	private static int getRank(double probability, double[] thresholds, boolean log) {
+		if (probability == (log? Double.NEGATIVE_INFINITY: 0.0)) {
+			return RankSemiRing.getInstance().zeroInt();
 		}
-		
-		return dist2;
+		int lo = 0;
+		int hi = thresholds.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (thresholds[mid] > probability) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
 	}
 	
 	/**
@@ -58,40 +239,22 @@ public class ProbToRank {
 	 * 
 	 * The definition of congruence is given in definition 1 in the 
 	 * paper "On Transformations between Probability and Spohnian Disbelief Functions" 
-	 * by Giang and Shenoy (1999).
+	 * by Giang and Shenoy (1999). Instead of comparing all pairs of events,
+	 * the worlds are grouped by rank, and the functions are congruent iff
+	 * for every finite rank the mass of the worlds ranked above it is less
+	 * than the probability of its least probable world.
+	 * 
+	 * The probability function may also hold log probabilities
+	 * ({@link LogProbSemiRing}), in which case the masses are summed in log space.
 	 * 
-	 * If this function returns false then the event which causes 
-	 * failure of congruence is printed on the System.out.
+	 * Use {@link CongruenceChecker} to obtain the events which cause
+	 * failure of congruence.
 	 * 
-	 * Note that the complexity of this function is exponential wrt
-	 * the size of the set of variables.
+	 * Note that every total configuration is visited once, so the
+	 * complexity of this function is linear in the number of worlds
+	 * (and thus still exponential wrt the size of the set of variables).
 	 */
 	public static boolean isCongruent(AbstractDistribution<Double> pf, AbstractDistribution<Integer> rf) {
-		
-		if (!pf.getVariables().equals(rf.getVariables())) {
-			throw new IllegalArgumentException("Distributions must be over same set variables");
-		}
-		
-		Set<Configuration> allConfigs = new LinkedHashSet<Configuration>();
-		allConfigs.addAll(BaseTools.generateAllTotalConfigs(pf.getVariables()));
-		Set<Set<Configuration>> allConfigSets = BaseTools.powerSet(allConfigs);
-		
-		for (Set<Configuration> A: allConfigSets) {
-			for (Set<Configuration> B: allConfigSets) {
-				if (pf.getWeight(A) >= pf.getWeight(B)) {
-					if (rf.getWeight(A) > rf.getWeight(B)) {
-						System.out.println("Not congruent. Events:");
-						System.out.println("A: " + A);
-						System.out.println("B: " + B);
-						System.out.println("P(A) = " + pf.getWeight(A));
-						System.out.println("P(B) = " + pf.getWeight(B));
-						System.out.println("k(A) = " + rf.getWeight(A));
-						System.out.println("k(B) = " + rf.getWeight(B));
-						return false;
-					}
-				}
-			}
-		}
-		return false;
+		return CongruenceChecker.check(pf, rf) == null;
 	}
 }